@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Batches the acknowledgements of frames, so that they can go back to the peripheral in as few
+ * writes to {@link RemoteControl#ACK_UUID} as possible.
+ *
+ * Each write is a count (N), then the sequence numbers of the N frames being acknowledged, then
+ * the mean time (in us, as a 16-bit little-endian value) we took to process each of them. The
+ * peripheral can take the latter away from its own measure of the time between sending a frame
+ * and receiving its acknowledgement to get the round trip over the air.
+ */
+class Acknowledgements {
+
+    // Gives the most frames we'll acknowledge in a single write
+    static final int MAX_BATCH = 16;
+
+    private final int[] sequences = new int[MAX_BATCH];
+
+    // Gives a buffer for each size of batch, so that writing one out doesn't allocate
+    private final byte[][] values = new byte[MAX_BATCH + 1][];
+    private int count = 0;
+    private long processing = 0L;
+
+    /**
+     * @param sequence the sequence number of the frame.
+     * @param processing the time (in ns) taken to process the frame's events.
+     */
+    void add(int sequence, long processing) {
+
+        if (count < MAX_BATCH){
+            sequences[count++] = sequence;
+            this.processing += processing;
+        }
+    }
+
+    boolean isEmpty() {
+        return (count == 0);
+    }
+
+    boolean isFull() {
+        return (count >= MAX_BATCH);
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean processing time (in ns) of the frames in the batch.
+     */
+    long getProcessing() {
+        return (count == 0) ? 0L : (processing / count);
+    }
+
+    /**
+     * @return the batch, ready to be written out; only valid until the next call.
+     */
+    byte[] toByteArray() {
+
+        final int micros = (int) Math.min( getProcessing( ) / 1000L, 0x0000FFFF );
+        byte[] value = values[count];
+        if (value == null){
+            value = new byte[count + 3];
+            values[count] = value;
+        }
+        value[0] = (byte) count;
+        for (int i = 0; i < count; i++){
+            value[i+1] = (byte) sequences[i];
+        }
+        value[count+1] = (byte) micros;
+        value[count+2] = (byte) (micros >>> 8);
+        return value;
+    }
+
+    void clear() {
+        count = 0;
+        processing = 0L;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.List;
+
+import android.util.Log;
+
+import android.view.KeyEvent;
+
+import android.content.Context;
+import android.content.ComponentName;
+
+import android.media.session.PlaybackState;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+
+/**
+ * Keeps track of the media session which currently has priority (i.e. the one the platform
+ * would route a media key to), so that it can be controlled directly rather than by way of
+ * synthesised key events.
+ *
+ * Following the active sessions needs notification access (c.f. {@link MediaNotificationListener});
+ * without it, there is never a session. The changes are followed on the thread which starts
+ * following them, and only to be looked at from it.
+ */
+class ActiveMediaSession implements MediaSessionManager.OnActiveSessionsChangedListener {
+
+    private static final String TAG = ActiveMediaSession.class.getSimpleName( );
+
+    interface Listener {
+        void onActiveSessionChanged(MediaController controller);
+    }
+
+    private final MediaSessionManager mediaSessionManager;
+    private final ComponentName component;
+
+    private Listener listener = null;
+    private boolean started = false;
+
+    // Gives the controller for the session with priority, if any
+    private MediaController controller = null;
+
+    ActiveMediaSession(Context context) {
+        this.mediaSessionManager = context.getSystemService( MediaSessionManager.class );
+        this.component = new ComponentName( context, MediaNotificationListener.class );
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts following the active sessions, if not already doing so.
+     *
+     * @return true if following the active sessions; false if we lack notification access.
+     */
+    boolean start() {
+
+        if (started){
+            return true;
+        }
+        try {
+            mediaSessionManager.addOnActiveSessionsChangedListener( this, component );
+            started = true;
+            onActiveSessionsChanged( mediaSessionManager.getActiveSessions( component ) );
+        }
+        catch (SecurityException ex) {
+            Log.i( TAG, "No notification access, so can't follow media sessions" );
+        }
+        return started;
+    }
+
+    void stop() {
+
+        if (!started){
+            return;
+        }
+        mediaSessionManager.removeOnActiveSessionsChangedListener( this );
+        started = false;
+        controller = null;
+    }
+
+    MediaController getController() {
+        return controller;
+    }
+
+    @Override
+    public void onActiveSessionsChanged(List<MediaController> controllers) {
+
+        // The list is in order of priority, so follow the first
+        final MediaController controller = (controllers == null || controllers.isEmpty( ))
+            ? null
+            : controllers.get( 0 );
+
+        // Look for an early out; the list is re-sent on changes we don't care about
+        if (isSameSession( controller, this.controller )){
+            return;
+        }
+        Log.d( TAG, "Active session: " + ((controller == null) ? null : controller.getPackageName( )) );
+        this.controller = controller;
+        if (listener != null){
+            listener.onActiveSessionChanged( controller );
+        }
+    }
+
+    private static boolean isSameSession(MediaController a, MediaController b) {
+
+        if (a == null || b == null){
+            return (a == b);
+        }
+        return a.getSessionToken( ).equals( b.getSessionToken( ) );
+    }
+
+    private static boolean isPlaying(PlaybackState playbackState) {
+
+        if (playbackState == null){
+            return false;
+        }
+        switch (playbackState.getState( )){
+            case PlaybackState.STATE_PLAYING:
+            case PlaybackState.STATE_BUFFERING:
+            case PlaybackState.STATE_CONNECTING:
+            case PlaybackState.STATE_FAST_FORWARDING:
+            case PlaybackState.STATE_REWINDING:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Performs the transport control equivalent to the given media key on the given session.
+     *
+     * @return true if the key has an equivalent; false otherwise.
+     */
+    static boolean dispatchMediaKey(MediaController controller, int code) {
+
+        final MediaController.TransportControls controls = controller.getTransportControls( );
+        switch (code) {
+            case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+                if (isPlaying( controller.getPlaybackState( ) )){
+                    controls.pause( );
+                }else{
+                    controls.play( );
+                }
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_PLAY:
+                controls.play( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_PAUSE:
+                controls.pause( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_STOP:
+                controls.stop( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+                controls.skipToPrevious( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_NEXT:
+                controls.skipToNext( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_REWIND:
+                controls.rewind( );
+                return true;
+
+            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+                controls.fastForward( );
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.ParcelUuid;
+
+import android.bluetooth.le.ScanRecord;
+
+/**
+ * Describes what a peripheral advertises about itself in the service data for
+ * {@link RemoteControl#SERVICE_UUID}: its {@link Capabilities} (in the same form as the
+ * characteristic) followed by a hash of its GATT database, as a 32-bit little-endian value.
+ *
+ * Knowing these up front means we needn't wait on the characteristic, and can tell whether
+ * the peripheral is laid out as it was the last time we connected to it.
+ */
+class Advertisement {
+
+    private static final ParcelUuid SERVICE_UUID = new ParcelUuid( RemoteControl.SERVICE_UUID );
+
+    private final Capabilities capabilities;
+    private final int databaseHash;
+
+    private Advertisement(Capabilities capabilities, int databaseHash) {
+        this.capabilities = capabilities;
+        this.databaseHash = databaseHash;
+    }
+
+    /**
+     * @return what's advertised in the given record, or null if nothing (or nothing valid) is.
+     */
+    static Advertisement parse(ScanRecord record) {
+
+        if (record == null){
+            return null;
+        }
+        final byte[] data = record.getServiceData( SERVICE_UUID );
+        if (data == null || data.length < 7){
+            return null;
+        }
+        final Capabilities capabilities = Capabilities.parse( data );
+        final int databaseHash = (data[3] & 0xFF)
+            | ((data[4] & 0xFF) << 8)
+            | ((data[5] & 0xFF) << 16)
+            | ((data[6] & 0xFF) << 24);
+        return new Advertisement( capabilities, databaseHash );
+    }
+
+    Capabilities getCapabilities() {
+        return capabilities;
+    }
+
+    int getDatabaseHash() {
+        return databaseHash;
+    }
+
+    @Override
+    public String toString() {
+        return capabilities + ", database: " + Integer.toHexString( databaseHash );
+    }
+}
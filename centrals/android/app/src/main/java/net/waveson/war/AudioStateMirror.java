@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.Handler;
+
+import android.util.Log;
+
+import android.content.Intent;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.BroadcastReceiver;
+
+import android.media.AudioManager;
+
+/**
+ * Mirrors the state of a stream (its volume, maximum volume and whether it's muted) and the
+ * ringer mode, so that commands can consult it without a round trip to the audio service.
+ *
+ * The mirror is kept up-to-date from the platform's broadcasts, using the values they carry
+ * where they carry them. Changes we make ourselves are applied to it straight away, ahead of
+ * their broadcasts; should one of them fail, {@link #refresh()} reconciles it with the platform.
+ *
+ * Only to be used on the thread of the handler it's started with, on which the broadcasts come.
+ */
+class AudioStateMirror extends BroadcastReceiver {
+
+    private static final String TAG = AudioStateMirror.class.getSimpleName( );
+
+    // These aren't part of the public API, but have been broadcast since forever
+    private static final String VOLUME_CHANGED_ACTION = "android.media.VOLUME_CHANGED_ACTION";
+    private static final String STREAM_MUTE_CHANGED_ACTION = "android.media.STREAM_MUTE_CHANGED_ACTION";
+    private static final String EXTRA_VOLUME_STREAM_TYPE = "android.media.EXTRA_VOLUME_STREAM_TYPE";
+    private static final String EXTRA_VOLUME_STREAM_VALUE = "android.media.EXTRA_VOLUME_STREAM_VALUE";
+    private static final String EXTRA_STREAM_VOLUME_MUTED = "android.media.EXTRA_STREAM_VOLUME_MUTED";
+
+    interface Listener {
+        void onAudioStateChanged();
+    }
+
+    private final int stream;
+    private final AudioManager audioManager;
+
+    private Listener listener = null;
+    private boolean started = false;
+
+    private int maxVolume = 0;
+    private int volume = 0;
+    private boolean muted = false;
+    private int ringerMode = AudioManager.RINGER_MODE_NORMAL;
+
+    AudioStateMirror(int stream, AudioManager audioManager) {
+        this.stream = stream;
+        this.audioManager = audioManager;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void start(Context context, Handler handler) {
+
+        if (!started){
+            IntentFilter intentFilter = new IntentFilter( );
+            intentFilter.addAction( VOLUME_CHANGED_ACTION );
+            intentFilter.addAction( STREAM_MUTE_CHANGED_ACTION );
+            intentFilter.addAction( AudioManager.RINGER_MODE_CHANGED_ACTION );
+            context.registerReceiver( this, intentFilter, null, handler );
+            started = true;
+        }
+        refresh( );
+    }
+
+    void stop(Context context) {
+
+        if (started){
+            context.unregisterReceiver( this );
+        }
+        started = false;
+    }
+
+    /**
+     * Re-reads the whole state from the platform.
+     */
+    void refresh() {
+
+        maxVolume = audioManager.getStreamMaxVolume( stream );
+        volume = audioManager.getStreamVolume( stream );
+        muted = audioManager.isStreamMute( stream );
+        ringerMode = audioManager.getRingerMode( );
+        Log.d( TAG, "Refreshed; " + this );
+        onChanged( );
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+
+        final String action = intent.getAction( );
+        if (AudioManager.RINGER_MODE_CHANGED_ACTION.equals( action )){
+            ringerMode = intent.getIntExtra( AudioManager.EXTRA_RINGER_MODE, ringerMode );
+            return;
+        }
+        if (intent.getIntExtra( EXTRA_VOLUME_STREAM_TYPE, -1 ) != stream){
+            return;
+        }
+        if (VOLUME_CHANGED_ACTION.equals( action )){
+            volume = intent.hasExtra( EXTRA_VOLUME_STREAM_VALUE )
+                ? intent.getIntExtra( EXTRA_VOLUME_STREAM_VALUE, volume )
+                : audioManager.getStreamVolume( stream );
+        }else if (STREAM_MUTE_CHANGED_ACTION.equals( action )){
+            muted = intent.hasExtra( EXTRA_STREAM_VOLUME_MUTED )
+                ? intent.getBooleanExtra( EXTRA_STREAM_VOLUME_MUTED, muted )
+                : audioManager.isStreamMute( stream );
+        }
+        onChanged( );
+    }
+
+    private void onChanged() {
+
+        if (listener != null){
+            listener.onAudioStateChanged( );
+        }
+    }
+
+    int getMaxVolume() {
+        return maxVolume;
+    }
+
+    int getVolume() {
+        return volume;
+    }
+
+    boolean isMuted() {
+        return muted;
+    }
+
+    int getRingerMode() {
+        return ringerMode;
+    }
+
+    /**
+     * Notes that we've just raised or lowered the volume by a step.
+     */
+    void onVolumeAdjusted(int direction) {
+        volume = Math.max( 0, Math.min( volume + direction, maxVolume ) );
+    }
+
+    /**
+     * Notes that we've just set the volume to the given index.
+     */
+    void onVolumeSet(int index) {
+        volume = index;
+    }
+
+    void onMuteSet(boolean muted) {
+        this.muted = muted;
+    }
+
+    void onRingerModeSet(int ringerMode) {
+        this.ringerMode = ringerMode;
+    }
+
+    @Override
+    public String toString() {
+        return "volume: " + volume + "/" + maxVolume + ", muted: " + muted + ", ringer mode: " + ringerMode;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Describes the optional features of the W.A.R. protocol, as read from (and then written back
+ * to) {@link RemoteControl#CAPABILITIES_UUID}: a version byte, followed by the feature bits as a
+ * 16-bit little-endian value.
+ *
+ * A peripheral without the characteristic supports none of them, i.e. it sends single-byte
+ * notifications and nothing more.
+ */
+class Capabilities {
+
+    static final int VERSION = 1;
+
+    static final int NONE = 0;
+    static final int FEATURE_FRAMES = 0x00000001;
+    static final int FEATURE_SEQUENCE = 0x00000002;
+    static final int FEATURE_TIMESTAMP = 0x00000004;
+    static final int FEATURE_ACK = 0x00000008;
+    static final int FEATURE_ABSOLUTE_VOLUME = 0x00000010;
+    static final int FEATURE_STATE = 0x00000020;
+    static final int FEATURE_NOW_PLAYING = 0x00000040;
+
+    // Gives the features which we support
+    static final int SUPPORTED = FEATURE_FRAMES | FEATURE_SEQUENCE | FEATURE_TIMESTAMP | FEATURE_ACK
+        | FEATURE_ABSOLUTE_VOLUME | FEATURE_STATE | FEATURE_NOW_PLAYING;
+
+    // Gives the capabilities of peripherals which pre-date them
+    static final Capabilities LEGACY = new Capabilities( 0, NONE );
+
+    private final int version;
+    private final int features;
+
+    Capabilities(int version, int features) {
+        this.version = version;
+        this.features = features;
+    }
+
+    /**
+     * @return the capabilities in the given value, or null if it is malformed.
+     */
+    static Capabilities parse(byte[] value) {
+
+        if (value == null || value.length < 3){
+            return null;
+        }
+        return new Capabilities(
+            (value[0] & 0xFF),
+            (value[1] & 0xFF) | ((value[2] & 0xFF) << 8)
+        );
+    }
+
+    byte[] toByteArray() {
+        return new byte[]{ (byte) version, (byte) features, (byte) (features >>> 8) };
+    }
+
+    boolean has(int feature) {
+        return ((features & feature) == feature);
+    }
+
+    /**
+     * @return the capabilities to use in talking to a peripheral with these ones, i.e. every
+     * feature which both sides support, at the lower of the two versions.
+     */
+    Capabilities negotiate() {
+        return new Capabilities(
+            Math.min( version, VERSION ),
+            (features & SUPPORTED)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " (0x" + Integer.toHexString( features ) + ")";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Estimates the offset between the peripheral's clock and ours, so that the timestamps on the
+ * frames it sends can be turned into the time taken for each event to reach us.
+ *
+ * Each exchange goes: we write our time (t0) to {@link RemoteControl#CLOCK_UUID}; the peripheral
+ * notifies a frame giving its time (t1) and echoing t0; we note the time it arrives (t2). Taking
+ * t1 to fall halfway between t0 and t2, the offset is t1 - (t0 + t2)/2. The exchange with the
+ * shortest round trip bounds the error most tightly, so that's the one we keep.
+ *
+ * All times are in ms, and are compared modulo 2^32 as that's what goes over the air.
+ */
+class ClockSync {
+
+    // Gives the number of exchanges to make each time we synchronise
+    static final int EXCHANGES = 4;
+
+    private int exchanges = 0;
+
+    private boolean synchronised = false;
+    private int offset = 0;
+    private int roundTrip = Integer.MAX_VALUE;
+
+    /**
+     * Forgets any previous estimate, e.g. for a new link.
+     */
+    void reset() {
+        exchanges = 0;
+        synchronised = false;
+        offset = 0;
+        roundTrip = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Readies for another round of exchanges, refining (rather than forgetting) the estimate.
+     */
+    void restart() {
+        exchanges = 0;
+    }
+
+    /**
+     * @return true if another exchange should be made.
+     */
+    boolean hasMore() {
+        return (exchanges < EXCHANGES);
+    }
+
+    /**
+     * @return the payload for the next write to {@link RemoteControl#CLOCK_UUID}.
+     */
+    byte[] getRequest(long now) {
+
+        // Little-endian, like everything else on the wire
+        final int t0 = (int) now;
+        return new byte[]{
+            (byte) t0, (byte) (t0 >>> 8), (byte) (t0 >>> 16), (byte) (t0 >>> 24)
+        };
+    }
+
+    /**
+     * Accounts for the peripheral's answer to an earlier request.
+     *
+     * @param sent the time we sent the request, as echoed by the peripheral.
+     * @param peripheral the peripheral's time when it answered.
+     * @param now our time on receipt of the answer.
+     */
+    void onResponse(int sent, int peripheral, long now) {
+
+        exchanges++;
+        final int rtt = ((int) now) - sent;
+        if (rtt < 0){
+            return;
+        }
+        if (rtt <= roundTrip){
+            roundTrip = rtt;
+            offset = peripheral - (sent + (rtt / 2));
+            synchronised = true;
+        }
+    }
+
+    boolean isSynchronised() {
+        return synchronised;
+    }
+
+    int getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * @return the time (in ms) between the peripheral's given time and our given time.
+     */
+    long getLatency(int peripheral, long now) {
+        return ((int) now) - (peripheral - offset);
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Arrays;
+
+import android.os.Build;
+import android.os.Handler;
+
+import android.util.Log;
+
+import android.view.KeyEvent;
+
+import android.media.AudioManager;
+
+/**
+ * Carries out the commands sent by a remote control, on a thread of its own, so that they
+ * never wait behind the UI.
+ *
+ * The state the commands keep (the keys held down, and the rest of any macro being run) is
+ * confined to that thread, as is everything they consult or act upon: the mirror of the audio
+ * state, and the platform's side of things, by way of {@link Platform}.
+ */
+class CommandProcessor {
+
+    private static final String TAG = CommandProcessor.class.getSimpleName( );
+
+    private static boolean oneplus = false;
+    static {
+        String[] strings = new String[]{
+            Build.BRAND,
+            Build.MANUFACTURER
+        };
+        for (String string : strings){
+            final boolean match = (string != null) && string.toLowerCase( ).contains( "oneplus" );
+            if (match){
+                oneplus = true;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Gives what the commands act upon (on the processor's thread): the platform's audio and
+     * media services, and what's reported back to the peripheral.
+     */
+    interface Platform {
+        void dispatchMediaKeyEvent(KeyEvent event);
+
+        /**
+         * Performs the given media key on the active session's transport controls, if so configured.
+         *
+         * @return true if the key was performed; false if it should be dispatched as a key event.
+         */
+        boolean dispatchTransportControl(int code);
+
+        void adjustStreamVolume(int direction);
+        void setStreamVolume(int index);
+        void setRingerMode(int ringerMode);
+        void playFeedback(int cue);
+
+        void startReporting(SubscriptionManager subscriptionManager);
+        void stopReporting();
+
+        /**
+         * Has the next report of what's playing include everything, rather than what's changed.
+         */
+        void resetReporting();
+
+        /**
+         * Stops the service, on the main thread.
+         */
+        void stop();
+    }
+
+    private final Handler handler;
+    private final Preferences preferences;
+    private final AudioStateMirror audioStateMirror;
+    private final Platform platform;
+
+    // Gives the link to the current remote control, if any; set from the main thread
+    private volatile SubscriptionManager subscriptionManager = null;
+
+    // Gives the media keys which we've pressed but not (yet) released
+    private final int[] heldKeys = new int[CommandTable.TRANSPORT_KEYS.length];
+    private int heldKeyCount = 0;
+
+    // Gives the key events (down and up) dispatched so far, and their key codes, for re-use;
+    // there are only ever a handful, so they're simply searched
+    private int[] keyCodes = new int[8];
+    private KeyEvent[][] keyEvents = new KeyEvent[keyCodes.length][];
+    private int keyEventCount = 0;
+
+    // Gives the time (in ns) spent processing notifications since the last frame was acknowledged
+    private long processing = 0L;
+
+    // Gives the rest of the macro being run, if any, after a delay
+    private final Runnable pipeline = new Runnable( ) {
+        @Override
+        public void run() {
+            final int[] actions = pipelineActions;
+            pipelineActions = null;
+            if (actions != null){
+                perform( actions, pipelineIndex );
+            }
+        }
+    };
+    private int[] pipelineActions = null;
+    private int pipelineIndex = 0;
+
+    /**
+     * @param handler the handler of the thread to confine the commands to.
+     */
+    CommandProcessor(Handler handler, Preferences preferences, AudioStateMirror audioStateMirror, Platform platform) {
+        this.handler = handler;
+        this.preferences = preferences;
+        this.audioStateMirror = audioStateMirror;
+        this.platform = platform;
+    }
+
+    void setSubscriptionManager(SubscriptionManager subscriptionManager) {
+        this.subscriptionManager = subscriptionManager;
+    }
+
+    void onSubscriptionChanged(boolean subscribed) {
+
+        if (!subscribed){
+            platform.stopReporting( );
+            cancelPipeline( );
+            return;
+        }
+
+        // Let the remote control know where we're at
+        final SubscriptionManager subscriptionManager = this.subscriptionManager;
+        if (subscriptionManager != null){
+            platform.startReporting( subscriptionManager );
+        }
+    }
+
+    void onNowPlayingAbandoned() {
+        platform.resetReporting( );
+    }
+
+    void onFrame(int sequence) {
+
+        final SubscriptionManager subscriptionManager = this.subscriptionManager;
+        if (subscriptionManager != null){
+            subscriptionManager.acknowledge( sequence, processing );
+        }
+        processing = 0L;
+    }
+
+    void onResync(int lost) {
+
+        Log.i( TAG, "Resyncing after losing " + lost + " frame(s)" );
+
+        // Release any key whose release we may have missed, rather than leave it 'stuck' down
+        for (int i = 0; i < heldKeyCount; i++){
+            dispatchMediaKeyEvent( KeyEvent.ACTION_UP, heldKeys[i] );
+        }
+        heldKeyCount = 0;
+
+        // Re-read the state of the stream, which any lost steps/toggles will have left us unsure of
+        audioStateMirror.refresh( );
+    }
+
+    void onNotification(int value) {
+
+        final long start = System.nanoTime( );
+        try {
+            if ((value & RemoteControl.SET_VOLUME) == RemoteControl.SET_VOLUME){
+                setVolume( value & 0x000000FF );
+                return;
+            }
+            final int[] actions = preferences.getCommandTable( ).get( value );
+            if (CommandTable.isMacro( value )){
+                // A macro supersedes whatever is left of the last one
+                cancelPipeline( );
+                if (Log.isLoggable( TAG, Log.DEBUG )){
+                    Log.d( TAG, "Running macro " + (value & RemoteControl.MACRO_COUNT) );
+                }
+            }
+            perform( actions, 0 );
+        }
+        finally {
+            processing += (System.nanoTime( ) - start);
+        }
+    }
+
+    /**
+     * Abandons whatever is left of the macro being run, if anything.
+     */
+    void cancelPipeline() {
+
+        handler.removeCallbacks( pipeline );
+        pipelineActions = null;
+    }
+
+    /**
+     * Performs the given actions, from the given index on; a delay defers the rest of them
+     * to the handler, as the pipeline.
+     */
+    private void perform(int[] actions, int from) {
+
+        try {
+            for (int i = from; i < actions.length; i++){
+                final int action = actions[i];
+                final int operand = CommandTable.getOperand( action );
+                switch (CommandTable.getOp( action )) {
+                    case CommandTable.OP_STOP:
+                        if (Log.isLoggable( TAG, Log.DEBUG )){
+                            Log.d( TAG, "'STOP' recv'd" );
+                        }
+                        platform.stop( );
+                        return;
+
+                    case CommandTable.OP_DELAY:
+                        pipelineActions = actions;
+                        pipelineIndex = i + 1;
+                        handler.postDelayed( pipeline, operand );
+                        return;
+
+                    case CommandTable.OP_ADJUST_MUTE:
+                        adjustMute( operand );
+                        break;
+
+                    case CommandTable.OP_SET_VOLUME:
+                        setVolume( operand );
+                        break;
+
+                    case CommandTable.OP_TOGGLE_RINGER_MODE:
+                        toggleRingerMode( );
+                        break;
+
+                    case CommandTable.OP_TOGGLE_MUTE:
+                        adjustMute( AudioManager.ADJUST_TOGGLE_MUTE );
+                        break;
+
+                    case CommandTable.OP_ADJUST_VOLUME:
+                        if (!audioStateMirror.isMuted( )){
+                            adjustVolume( operand );
+                        }
+                        break;
+
+                    case CommandTable.OP_KEY_DOWN:
+                        // Transport controls act on the press; only key events are held
+                        if (!platform.dispatchTransportControl( operand )){
+                            dispatchMediaKeyEvent( KeyEvent.ACTION_DOWN, operand );
+                            onKeyDown( operand );
+                        }
+                        break;
+
+                    case CommandTable.OP_KEY_UP:
+                        if (onKeyUp( operand )){
+                            dispatchMediaKeyEvent( KeyEvent.ACTION_UP, operand );
+                        }
+                        break;
+
+                    case CommandTable.OP_KEY_PRESS:
+                        if (!platform.dispatchTransportControl( operand )){
+                            dispatchMediaKeyEvent( KeyEvent.ACTION_DOWN, operand );
+                            dispatchMediaKeyEvent( KeyEvent.ACTION_UP, operand );
+                        }
+                        break;
+
+                    default:
+                        Log.w( TAG, "Unrecognised action: " + action );
+                        break;
+                }
+            }
+        }
+        catch (Exception ex) {
+            Log.w( TAG, "Exception whilst handling notification", ex );
+
+            // Whatever failed may have left the mirror out of step
+            audioStateMirror.refresh( );
+        }
+    }
+
+    private void toggleRingerMode() {
+
+        // If we think we're on a OnePlus device, then do nothing
+        // because it seems to interfere w/the in-built hardware alert slider?
+        // (It confuses me, regardless..)
+        if (oneplus){
+            Log.d( TAG, "On a OnePlus device.." );
+            return;
+        }
+
+        // If the ringer mode is vibrate, make it normal;
+        // if it is normal, switch to vibrate
+        //
+        // If the ringer mode is anything else (i.e. silent),
+        // then we ignore the command because I'm only interested
+        // in being able to flip between normal and vibrate and
+        // interacting with 'silent' involves obtaining additional
+        // permissions (ACCESS_NOTIFICATION_POLICY)
+        switch (audioStateMirror.getRingerMode( )){
+            case AudioManager.RINGER_MODE_NORMAL:
+                platform.setRingerMode( AudioManager.RINGER_MODE_VIBRATE );
+                audioStateMirror.onRingerModeSet( AudioManager.RINGER_MODE_VIBRATE );
+                platform.playFeedback( Feedback.RINGER_VIBRATE );
+                break;
+
+            case AudioManager.RINGER_MODE_VIBRATE:
+                platform.setRingerMode( AudioManager.RINGER_MODE_NORMAL );
+                audioStateMirror.onRingerModeSet( AudioManager.RINGER_MODE_NORMAL );
+                platform.playFeedback( Feedback.RINGER_NORMAL );
+                break;
+        }
+    }
+
+    private void adjustVolume(int direction) {
+
+        // Bounds check w/audio feedback
+        final int volume = audioStateMirror.getVolume( );
+        if (direction == AudioManager.ADJUST_RAISE && volume >= audioStateMirror.getMaxVolume( )){
+            platform.playFeedback( Feedback.MAX_VOLUME );
+            return;
+        }
+        if (direction == AudioManager.ADJUST_LOWER && volume <= 0){
+            platform.playFeedback( Feedback.MIN_VOLUME );
+            return;
+        }
+        platform.adjustStreamVolume( direction );
+        audioStateMirror.onVolumeAdjusted( direction );
+    }
+
+    private void adjustMute(int direction) {
+
+        final boolean muted = (direction == AudioManager.ADJUST_TOGGLE_MUTE)
+            ? !audioStateMirror.isMuted( )
+            : (direction == AudioManager.ADJUST_MUTE);
+        platform.adjustStreamVolume( direction );
+        audioStateMirror.onMuteSet( muted );
+        platform.playFeedback( muted ? Feedback.MUTED : Feedback.UNMUTED );
+    }
+
+    private void setVolume(int level) {
+
+        // Scale the level (0-255) to the stream's range, rounding to nearest
+        final int index = ((level * audioStateMirror.getMaxVolume( )) + 127) / 255;
+        platform.setStreamVolume( index );
+        audioStateMirror.onVolumeSet( index );
+    }
+
+    private void dispatchMediaKeyEvent(int action, int code) {
+
+        if (Log.isLoggable( TAG, Log.DEBUG )){
+            Log.d( TAG, "KeyEvent code: " + code );
+        }
+        final KeyEvent[] events = getKeyEvents( code );
+        platform.dispatchMediaKeyEvent( events[(action == KeyEvent.ACTION_DOWN) ? 0 : 1] );
+    }
+
+    /**
+     * @return the key events (down and up) for the given key code.
+     */
+    private KeyEvent[] getKeyEvents(int code) {
+
+        // Key events are immutable and carry no timestamp, so one of each will do per key
+        for (int i = 0; i < keyEventCount; i++){
+            if (keyCodes[i] == code){
+                return keyEvents[i];
+            }
+        }
+        if (keyEventCount == keyCodes.length){
+            keyCodes = Arrays.copyOf( keyCodes, keyEventCount * 2 );
+            keyEvents = Arrays.copyOf( keyEvents, keyEventCount * 2 );
+        }
+        final KeyEvent[] events = new KeyEvent[]{
+            new KeyEvent( KeyEvent.ACTION_DOWN, code ),
+            new KeyEvent( KeyEvent.ACTION_UP, code )
+        };
+        keyCodes[keyEventCount] = code;
+        keyEvents[keyEventCount++] = events;
+        return events;
+    }
+
+    private void onKeyDown(int code) {
+
+        for (int i = 0; i < heldKeyCount; i++){
+            if (heldKeys[i] == code){
+                return;
+            }
+        }
+        if (heldKeyCount < heldKeys.length){
+            heldKeys[heldKeyCount++] = code;
+        }
+    }
+
+    private boolean onKeyUp(int code) {
+
+        for (int i = 0; i < heldKeyCount; i++){
+            if (heldKeys[i] == code){
+                heldKeys[i] = heldKeys[--heldKeyCount];
+                return true;
+            }
+        }
+        return false;
+    }
+}
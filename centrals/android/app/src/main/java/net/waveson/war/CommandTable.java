@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.view.KeyEvent;
+
+import android.media.AudioManager;
+
+/**
+ * Maps each of the 256 possible notification values to the list of actions it stands for.
+ *
+ * The table is built once, up front, from the bit layout in {@link RemoteControl} and the
+ * user's keymap, so that handling a notification is a single lookup rather than a chain of
+ * bitmask tests. Unlike the chain it replaces, combinations of transport keys (e.g. BACK
+ * and FORWARD together) yield an action for every key in the combination.
+ *
+ * The values reserved for macros (c.f. {@link RemoteControl#MACRO}) yield the user's list of
+ * actions for that macro, which may include delays; see {@link #parseMacro(String)}.
+ */
+class CommandTable {
+
+    // Gives the operations an action can encode; the operand lives in the low 16 bits
+    static final int OP_STOP = 1;
+    static final int OP_TOGGLE_RINGER_MODE = 2;
+    static final int OP_TOGGLE_MUTE = 3;
+    static final int OP_ADJUST_VOLUME = 4; // Only applied when the stream is not muted
+    static final int OP_KEY_DOWN = 5;
+    static final int OP_KEY_UP = 6;
+    static final int OP_KEY_PRESS = 7; // Down, then up
+    static final int OP_ADJUST_MUTE = 8; // The operand is an AudioManager mute adjustment
+    static final int OP_SET_VOLUME = 9; // The operand is a level, 0-255
+    static final int OP_DELAY = 10; // The operand is a time, in ms
+
+    // Gives the longest delay a macro may contain, in ms
+    static final int MAX_DELAY = 10000;
+
+    // Gives the transport keys, in the order in which their actions are performed
+    static final int[] TRANSPORT_KEYS = {
+        RemoteControl.PLAY_PAUSE,
+        RemoteControl.BACK,
+        RemoteControl.FORWARD
+    };
+
+    // Gives the default key code for each of the transport keys, above
+    static final int[] DEFAULT_KEY_CODES = {
+        KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE,
+        KeyEvent.KEYCODE_MEDIA_PREVIOUS,
+        KeyEvent.KEYCODE_MEDIA_NEXT
+    };
+
+    // Gives the names of the steps a macro can contain which take no argument, and their actions
+    private static final String[] STEP_NAMES = {
+        "play_pause", "play", "pause", "stop", "previous", "next", "rewind", "fast_forward",
+        "mute", "unmute", "toggle_mute", "volume_up", "volume_down", "ringer"
+    };
+    private static final int[] STEP_ACTIONS = {
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PLAY ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PAUSE ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_STOP ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PREVIOUS ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_NEXT ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_REWIND ),
+        action( OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_FAST_FORWARD ),
+        action( OP_ADJUST_MUTE, AudioManager.ADJUST_MUTE ),
+        action( OP_ADJUST_MUTE, AudioManager.ADJUST_UNMUTE ),
+        action( OP_TOGGLE_MUTE, 0 ),
+        action( OP_ADJUST_VOLUME, AudioManager.ADJUST_RAISE ),
+        action( OP_ADJUST_VOLUME, AudioManager.ADJUST_LOWER ),
+        action( OP_TOGGLE_RINGER_MODE, 0 )
+    };
+
+    private static final int[] NONE = new int[0];
+
+    private final int[][] table = new int[256][];
+
+    /**
+     * @param keyCodes the key code to dispatch for each of {@link #TRANSPORT_KEYS}, with
+     *                 {@link KeyEvent#KEYCODE_UNKNOWN} leaving that key unbound.
+     * @param macros the actions for each macro, from macro 1 on; any beyond
+     *               {@link RemoteControl#MACRO_COUNT} are ignored.
+     */
+    CommandTable(int[] keyCodes, int[][] macros) {
+
+        for (int value = 0; value < table.length; value++){
+            table[value] = decode( value, keyCodes );
+        }
+        for (int i = 0; i < macros.length && i < RemoteControl.MACRO_COUNT; i++){
+            table[RemoteControl.MACRO | (i + 1)] = macros[i];
+        }
+    }
+
+    /**
+     * @return true if the given notification value is one reserved for macros; false otherwise.
+     */
+    static boolean isMacro(int value) {
+        return ((value & RemoteControl.MACRO_MASK) == RemoteControl.MACRO)
+            && ((value & RemoteControl.MACRO_COUNT) != 0);
+    }
+
+    /**
+     * Parses a macro: a comma-separated list of steps, each of which is a media key (play_pause,
+     * play, pause, stop, previous, next, rewind or fast_forward), mute, unmute, toggle_mute,
+     * volume_up, volume_down, ringer, "volume N%" to set the volume or "wait N" to pause for
+     * N ms before the next step; e.g. "mute, next, volume 30%".
+     *
+     * @throws IllegalArgumentException if any step is not one of the above.
+     */
+    static int[] parseMacro(String macro) {
+
+        final String[] steps = macro.trim( ).toLowerCase( Locale.ROOT ).split( "\\s*,\\s*" );
+        final int[] actions = new int[steps.length];
+        for (int i = 0; i < steps.length; i++){
+            actions[i] = parseStep( steps[i] );
+        }
+        return actions;
+    }
+
+    private static int parseStep(String step) {
+
+        for (int i = 0; i < STEP_NAMES.length; i++){
+            if (STEP_NAMES[i].equals( step )){
+                return STEP_ACTIONS[i];
+            }
+        }
+
+        final String[] words = step.split( "\\s+" );
+        if (words.length == 2){
+            try {
+                if ("volume".equals( words[0] ) && words[1].endsWith( "%" )){
+                    final int percent = Integer.parseInt( words[1].substring( 0, words[1].length( ) - 1 ) );
+                    if (percent >= 0 && percent <= 100){
+                        return action( OP_SET_VOLUME, ((percent * 255) + 50) / 100 );
+                    }
+                }else if ("wait".equals( words[0] )){
+                    final int delay = Integer.parseInt( words[1] );
+                    if (delay >= 0 && delay <= MAX_DELAY){
+                        return action( OP_DELAY, delay );
+                    }
+                }
+            }
+            catch (NumberFormatException ex) {
+                // Fall through..
+            }
+        }
+        throw new IllegalArgumentException( "Unrecognised macro step: '" + step + "'" );
+    }
+
+    /**
+     * @return the actions for the given notification value; never null, but possibly empty.
+     */
+    int[] get(int value) {
+        return table[value & 0xFF];
+    }
+
+    static int getOp(int action) {
+        return (action >>> 16);
+    }
+
+    static int getOperand(int action) {
+        return (short) action;
+    }
+
+    private static int action(int op, int operand) {
+        return (op << 16) | (operand & 0x0000FFFF);
+    }
+
+    private static int[] decode(int value, int[] keyCodes) {
+
+        // Look for an early out
+        if ((value & RemoteControl.STOP) == RemoteControl.STOP){
+            return new int[]{ action( OP_STOP, 0 ) };
+        }
+        if (isMacro( value )){
+            return NONE; // Unless the user has defined it
+        }
+
+        int[] actions = new int[1 + TRANSPORT_KEYS.length];
+        int count = 0;
+
+        final boolean twoStage = ((value & RemoteControl.TWO_STAGE) == RemoteControl.TWO_STAGE);
+        final boolean down = ((value & RemoteControl.ACTION_DOWN) == RemoteControl.ACTION_DOWN);
+        if ((value & RemoteControl.MUTE) == RemoteControl.MUTE){
+            // Where we get separate reports for the up/down state of the key on the peripheral
+            // only apply the mute function *after* the key is released
+            if (!twoStage || !down){
+                final int toggle = RemoteControl.TOGGLE_RINGER_MODE;
+                actions[count++] = ((value & toggle) == toggle)
+                    ? action( OP_TOGGLE_RINGER_MODE, 0 )
+                    : action( OP_TOGGLE_MUTE, 0 );
+            }
+        }else if (!twoStage || down){
+            // Where we get separate reports for the up/down state of the key on the peripheral
+            // only apply volume changes when the key is pressed
+            if ((value & RemoteControl.VOLUME_UP) == RemoteControl.VOLUME_UP){
+                actions[count++] = action( OP_ADJUST_VOLUME, AudioManager.ADJUST_RAISE );
+            }else if ((value & RemoteControl.VOLUME_DOWN) == RemoteControl.VOLUME_DOWN){
+                actions[count++] = action( OP_ADJUST_VOLUME, AudioManager.ADJUST_LOWER );
+            }
+        }
+
+        final int op = twoStage
+            ? (down ? OP_KEY_DOWN : OP_KEY_UP)
+            : OP_KEY_PRESS;
+        for (int i = 0; i < TRANSPORT_KEYS.length; i++){
+            final int key = TRANSPORT_KEYS[i];
+            if ((value & key) != key || keyCodes[i] == KeyEvent.KEYCODE_UNKNOWN){
+                continue;
+            }
+            actions[count++] = action( op, keyCodes[i] );
+        }
+        return (count == 0) ? NONE : Arrays.copyOf( actions, count );
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Trades the latency of the link against its power, according to how it's being used.
+ *
+ * Whilst events are coming in from the peripheral, or whenever their latency goes past the
+ * target, the link is given {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} (i.e. the shortest
+ * connection interval). Once the peripheral has gone quiet, it's dropped back to
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED}, and then, after a longer while,
+ * to {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}.
+ *
+ * Each change of priority is logged along with the latency achieved since the last one.
+ *
+ * Must only be used on the thread of the handler given on construction.
+ */
+class ConnectionPriorityManager {
+
+    private static final String TAG = ConnectionPriorityManager.class.getSimpleName( );
+
+    // Gives the times (in ms) after the last event at which to drop the priority
+    static final long BALANCED_AFTER = 5000L;
+    static final long LOW_POWER_AFTER = 60000L;
+
+    private static final int UNKNOWN = -1;
+
+    private final Handler handler;
+    private long latencyTarget = 0L;
+
+    private BluetoothGatt gatt = null;
+    private int priority = UNKNOWN;
+    private long lastActive = 0L;
+    private boolean idling = false;
+
+    // Gives the latencies measured since the last change of priority
+    private long latencySum = 0L;
+    private int latencyCount = 0;
+
+    private final Runnable idle = new Runnable( ) {
+        @Override
+        public void run() {
+            onIdle( );
+        }
+    };
+
+    ConnectionPriorityManager(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @param latencyTarget the latency (in ms) past which to raise the priority; 0 for none.
+     */
+    void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = latencyTarget;
+    }
+
+    /**
+     * Starts managing the priority of the given link, as if the peripheral had just been active.
+     */
+    void start(BluetoothGatt gatt) {
+
+        this.gatt = gatt;
+        this.priority = UNKNOWN;
+        onActive( );
+    }
+
+    void stop() {
+
+        handler.removeCallbacks( idle );
+        idling = false;
+        gatt = null;
+    }
+
+    /**
+     * Called as events come in from the peripheral.
+     */
+    void onActive() {
+
+        lastActive = SystemClock.uptimeMillis( );
+        if (priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH){
+            request( BluetoothGatt.CONNECTION_PRIORITY_HIGH, "active" );
+        }
+        if (!idling && gatt != null){
+            idling = true;
+            handler.postDelayed( idle, BALANCED_AFTER );
+        }
+    }
+
+    /**
+     * Called with the latency (in ms) of each event, where it's known.
+     */
+    void onLatency(long latency) {
+
+        latencySum += latency;
+        latencyCount++;
+        if (latencyTarget > 0L && latency > latencyTarget && priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH){
+            request( BluetoothGatt.CONNECTION_PRIORITY_HIGH, "latency of " + latency + "ms" );
+        }
+    }
+
+    private void onIdle() {
+
+        idling = false;
+        if (gatt == null){
+            return;
+        }
+
+        // Wait out the rest of the quiet period, if it's been broken since
+        final long quiet = SystemClock.uptimeMillis( ) - lastActive;
+        final long wait;
+        if (quiet < BALANCED_AFTER){
+            wait = BALANCED_AFTER - quiet;
+        }else if (quiet < LOW_POWER_AFTER){
+            if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH){
+                request( BluetoothGatt.CONNECTION_PRIORITY_BALANCED, "idle for " + quiet + "ms" );
+            }
+            wait = LOW_POWER_AFTER - quiet;
+        }else{
+            if (priority != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER){
+                request( BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, "idle for " + quiet + "ms" );
+            }
+            return;
+        }
+        idling = true;
+        handler.postDelayed( idle, wait );
+    }
+
+    private void request(int priority, String reason) {
+
+        final BluetoothGatt gatt = this.gatt;
+        if (gatt == null){
+            return;
+        }
+        if (!gatt.requestConnectionPriority( priority )){
+            Log.w( TAG, "Failed to request priority " + toString( priority ) + " (" + reason + ")" );
+            return;
+        }
+        final String latency = (latencyCount == 0)
+            ? "n/a"
+            : (latencySum / latencyCount) + "ms (mean of " + latencyCount + ")";
+        Log.i( TAG, "Priority " + toString( this.priority ) + " -> " + toString( priority )
+            + " (" + reason + "); latency achieved: " + latency );
+        this.priority = priority;
+        latencySum = 0L;
+        latencyCount = 0;
+    }
+
+    private static String toString(int priority) {
+
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "HIGH";
+
+            case BluetoothGatt.CONNECTION_PRIORITY_BALANCED:
+                return "BALANCED";
+
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "LOW_POWER";
+
+            default:
+                return "DEFAULT";
+        }
+    }
+}
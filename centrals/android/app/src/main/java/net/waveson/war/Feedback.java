@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Vibrator;
+import android.os.HandlerThread;
+import android.os.VibrationEffect;
+
+import android.content.Context;
+
+import android.media.SoundPool;
+import android.media.AudioAttributes;
+
+/**
+ * Plays short sounds (and, optionally, vibrations) to signal things the user can't otherwise
+ * tell from the remote control, e.g. that the volume is already as high as it goes.
+ *
+ * The sounds are loaded into a {@link SoundPool} up front, on a thread of our own, and are then
+ * played on that thread too; so {@link #play(int)} just posts a message, and never holds up the
+ * thread which handles the next command.
+ */
+class Feedback {
+
+    // Gives the cues
+    static final int MAX_VOLUME = 0;
+    static final int MIN_VOLUME = 1;
+    static final int MUTED = 2;
+    static final int UNMUTED = 3;
+    static final int RINGER_NORMAL = 4;
+    static final int RINGER_VIBRATE = 5;
+
+    // Gives the sound for each cue, above
+    private static final int[] SOUNDS = {
+        R.raw.feedback_limit_high,
+        R.raw.feedback_limit_low,
+        R.raw.feedback_off,
+        R.raw.feedback_on,
+        R.raw.feedback_on,
+        R.raw.feedback_off
+    };
+
+    // Gives the length (in ms) of the vibration which accompanies a sound
+    private static final long VIBRATION = 30L;
+
+    private static final int LOAD_MSG = -1;
+
+    private final HandlerThread thread;
+    private final FeedbackHandler handler;
+
+    private static class FeedbackHandler extends Handler {
+
+        private final Context context;
+        private final Vibrator vibrator;
+        private final int[] soundIds = new int[SOUNDS.length];
+        private SoundPool soundPool = null;
+
+        FeedbackHandler(Context context, HandlerThread thread) {
+            super( thread.getLooper( ) );
+            this.context = context.getApplicationContext( );
+            this.vibrator = context.getSystemService( Vibrator.class );
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+
+            if (msg.what == LOAD_MSG){
+                load( );
+                return;
+            }
+            if (soundPool != null){
+                soundPool.play( soundIds[msg.what], 1.0f, 1.0f, 1, 0, 1.0f );
+            }
+            if (msg.arg1 != 0 && vibrator != null && vibrator.hasVibrator( )){
+                vibrate( );
+            }
+        }
+
+        private void load() {
+
+            soundPool = new SoundPool.Builder( )
+                .setMaxStreams( 2 )
+                .setAudioAttributes(
+                    new AudioAttributes.Builder( )
+                        .setUsage( AudioAttributes.USAGE_ASSISTANCE_SONIFICATION )
+                        .setContentType( AudioAttributes.CONTENT_TYPE_SONIFICATION )
+                        .build( )
+                )
+                .build( );
+            for (int i = 0; i < SOUNDS.length; i++){
+                soundIds[i] = soundPool.load( context, SOUNDS[i], 1 );
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        private void vibrate() {
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+                vibrator.vibrate( VibrationEffect.createOneShot( VIBRATION, VibrationEffect.DEFAULT_AMPLITUDE ) );
+            }else{
+                vibrator.vibrate( VIBRATION );
+            }
+        }
+
+        void release() {
+
+            if (soundPool != null){
+                soundPool.release( );
+            }
+            soundPool = null;
+        }
+    }
+
+    Feedback(Context context) {
+
+        thread = new HandlerThread( Feedback.class.getSimpleName( ) );
+        thread.start( );
+        handler = new FeedbackHandler( context, thread );
+        handler.sendEmptyMessage( LOAD_MSG );
+    }
+
+    /**
+     * Plays the given cue, with a vibration if haptic, without waiting for it.
+     */
+    void play(int cue, boolean haptic) {
+        handler.obtainMessage( cue, (haptic ? 1 : 0), 0 ).sendToTarget( );
+    }
+
+    void release() {
+
+        handler.post( new Runnable( ) {
+            @Override
+            public void run() {
+                handler.release( );
+            }
+        } );
+        thread.quitSafely( );
+    }
+}
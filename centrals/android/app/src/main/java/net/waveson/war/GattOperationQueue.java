@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.ArrayDeque;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Runs the GATT operations on a link one at a time, starting each as soon as the previous
+ * one has completed.
+ *
+ * The stack only takes one outstanding operation at a time, and fails any others; rather than
+ * space them out by a fixed delay, we wait for the callback of each before starting the next.
+ * Should the callback never come, the operation times out, and the listener is told. How long
+ * to wait between the completion of one operation and the start of the next is up to the
+ * {@link GattPacing} for the peripheral, which is told how each operation went.
+ *
+ * Must only be used on the thread of the handler given on construction.
+ */
+class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName( );
+
+    // Gives the time (in ms) to wait for an operation's callback, by default
+    static final long DEFAULT_TIMEOUT = 5000L;
+
+    interface Operation {
+
+        /**
+         * Starts the operation.
+         *
+         * @return true if its callback is to be waited for; false if there's none to come
+         * (e.g. because the operation failed to start).
+         */
+        boolean start();
+    }
+
+    interface Listener {
+        void onTimeout(String operation);
+    }
+
+    private static class Entry {
+
+        String name;
+        long timeout;
+        Operation operation;
+        long started = 0L;
+
+        // Gives the number of times the entry has been taken from the pool, and the next in it
+        int generation = 0;
+        Entry next = null;
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>( );
+    private Entry current = null;
+    private boolean scheduled = false;
+
+    // Gives the entries done with, for re-use, so that the operations which recur for as long
+    // as the link is up (e.g. writing acknowledgements) don't allocate
+    private Entry pool = null;
+
+    // Gives the pacing of the operations, and when the last one completed
+    private GattPacing pacing = new GattPacing( 0L );
+    private long lastCompleted = 0L;
+
+    private final Runnable next = new Runnable( ) {
+        @Override
+        public void run() {
+            scheduled = false;
+            startNext( );
+        }
+    };
+
+    private final Runnable timeout = new Runnable( ) {
+        @Override
+        public void run() {
+            onTimeout( );
+        }
+    };
+
+    GattOperationQueue(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    void setPacing(GattPacing pacing) {
+        this.pacing = pacing;
+    }
+
+    GattPacing getPacing() {
+        return pacing;
+    }
+
+    void enqueue(String name, Operation operation) {
+        enqueue( name, DEFAULT_TIMEOUT, operation );
+    }
+
+    /**
+     * Queues the given operation, starting it straight away if the link is idle.
+     *
+     * @param timeout the time (in ms) to wait for its callback.
+     */
+    void enqueue(String name, long timeout, Operation operation) {
+
+        Entry entry = pool;
+        if (entry == null){
+            entry = new Entry( );
+        }else{
+            pool = entry.next;
+            entry.next = null;
+        }
+        entry.generation++;
+        entry.name = name;
+        entry.timeout = timeout;
+        entry.operation = operation;
+        pending.add( entry );
+        schedule( );
+    }
+
+    private void recycle(Entry entry) {
+
+        entry.name = null;
+        entry.operation = null;
+        entry.next = pool;
+        pool = entry;
+    }
+
+    /**
+     * Completes the operation in flight, if any; to be called from its callback.
+     *
+     * @param status the status given to the callback, e.g. {@link BluetoothGatt#GATT_SUCCESS}.
+     */
+    void onComplete(int status) {
+
+        final Entry entry = current;
+        if (entry == null){
+            return;
+        }
+        handler.removeCallbacks( timeout );
+        current = null;
+        lastCompleted = SystemClock.uptimeMillis( );
+
+        // The peripheral refusing the operation outright says nothing of how fast it can go
+        if (status == BluetoothGatt.GATT_SUCCESS || GattPacing.isRejection( status )){
+            pacing.onCompleted( entry.name, lastCompleted - entry.started );
+        }else{
+            pacing.onFailed( entry.name );
+        }
+        recycle( entry );
+        schedule( );
+    }
+
+    /**
+     * Completes the operation in flight, if it's of the given type; for callbacks which may
+     * also come unbidden (or late, after the operation has timed out).
+     *
+     * @return true if the operation was completed; false if it wasn't the one in flight.
+     */
+    boolean onComplete(String name, int status) {
+
+        if (current != null && current.name.equals( name )){
+            onComplete( status );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Abandons the operation in flight (if any) and any waiting to be started.
+     */
+    void clear() {
+
+        handler.removeCallbacks( next );
+        handler.removeCallbacks( timeout );
+        Entry entry;
+        while ((entry = pending.poll( )) != null){
+            recycle( entry );
+        }
+        if (current != null){
+            recycle( current );
+        }
+        current = null;
+        scheduled = false;
+    }
+
+    private void schedule() {
+
+        // Look for an early out
+        if (current != null || scheduled || pending.isEmpty( )){
+            return;
+        }
+        final long guard = pacing.getGuard( pending.peek( ).name );
+        final long wait = (lastCompleted + guard) - SystemClock.uptimeMillis( );
+        if (wait > 0L){
+            scheduled = true;
+            handler.postDelayed( next, wait );
+        }else{
+            startNext( );
+        }
+    }
+
+    private void startNext() {
+
+        // Operations which don't start (or have no callback) don't hold up the next
+        while (current == null && !scheduled && !pending.isEmpty( )){
+            final Entry entry = pending.poll( );
+            final int generation = entry.generation;
+            current = entry;
+            entry.started = SystemClock.uptimeMillis( );
+            final boolean started = entry.operation.start( );
+
+            // The operation may have completed (and its entry been re-used) in the meantime
+            final boolean inFlight = (current == entry) && (entry.generation == generation);
+            if (started){
+                if (inFlight){
+                    handler.postDelayed( timeout, entry.timeout );
+                }
+                return;
+            }
+            if (inFlight){
+                current = null;
+                recycle( entry );
+            }
+        }
+    }
+
+    private void onTimeout() {
+
+        final Entry entry = current;
+        if (entry == null){
+            return;
+        }
+        Log.w( TAG, entry.name + " timed out after " + entry.timeout + "ms" );
+        current = null;
+        lastCompleted = SystemClock.uptimeMillis( );
+        final String name = entry.name;
+        pacing.onFailed( name );
+        recycle( entry );
+        listener.onTimeout( name );
+        schedule( );
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import android.util.Log;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Learns how closely the GATT operations on a given peripheral can follow one another.
+ *
+ * For each type of operation, it keeps a guard interval, to wait between the completion of the
+ * previous operation and the start of one of that type, and the typical time its callback takes
+ * to come. Every peripheral starts with no guard at all. A timeout or error backs the guard for
+ * that type of operation off: to at least the step given on construction, its typical latency
+ * and twice what it was, but never past {@link #MAX_BACKOFF} steps. An outright rejection of the
+ * operation (e.g. a write to a characteristic which can't be written) isn't an error in this
+ * sense, as no amount of waiting would make a difference. Each subscription made without any
+ * errors eases every guard off by a quarter, so the pacing drifts down until the peripheral
+ * starts to complain.
+ *
+ * What's learnt can be saved as a short string (see {@link #encode()}), so that the next
+ * connection to the peripheral picks up where this one left off.
+ *
+ * Must only be used on one thread at a time.
+ */
+class GattPacing {
+
+    private static final String TAG = GattPacing.class.getSimpleName( );
+
+    // Gives the longest guard interval (in ms) to back off to, and the most steps any one
+    // type of operation can back off by
+    static final long MAX_GUARD = 2000L;
+    static final int MAX_BACKOFF = 8;
+
+    // Gives the guard interval (in ms) below which there's no guard at all
+    private static final long MIN_GUARD = 8L;
+
+    // Gives the weight (as a shift) of each new latency in the running mean
+    private static final int LATENCY_SHIFT = 2;
+
+    private static class Pace {
+        long guard = 0L;
+        long latency = -1L;
+    }
+
+    private final long step;
+    private final long maxGuard;
+    private final HashMap<String, Pace> paces = new HashMap<>( );
+    private int failures = 0;
+
+    /**
+     * @param step the least (in ms) to back off to after an error.
+     */
+    GattPacing(long step) {
+        this.step = Math.max( step, MIN_GUARD );
+        this.maxGuard = Math.min( this.step * MAX_BACKOFF, MAX_GUARD );
+    }
+
+    /**
+     * @return true if the given status is the peripheral refusing an operation outright, rather
+     * than failing it; false otherwise.
+     */
+    static boolean isRejection(int status) {
+
+        switch (status) {
+            case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+            case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+            case BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private Pace getPace(String operation) {
+
+        Pace pace = paces.get( operation );
+        if (pace == null){
+            pace = new Pace( );
+            paces.put( operation, pace );
+        }
+        return pace;
+    }
+
+    /**
+     * @return the time (in ms) to wait between the last operation and one of the given type.
+     */
+    long getGuard(String operation) {
+
+        final Pace pace = paces.get( operation );
+        return (pace == null) ? 0L : pace.guard;
+    }
+
+    /**
+     * @return the longest of the guard intervals; 0 if there are none.
+     */
+    long getMaxGuard() {
+
+        long max = 0L;
+        for (Pace pace : paces.values( )){
+            max = Math.max( max, pace.guard );
+        }
+        return max;
+    }
+
+    /**
+     * Called when an operation of the given type completes successfully.
+     *
+     * @param latency the time (in ms) from its start to its callback.
+     */
+    void onCompleted(String operation, long latency) {
+
+        final Pace pace = getPace( operation );
+        pace.latency = (pace.latency < 0L)
+            ? latency
+            : pace.latency + ((latency - pace.latency) >> LATENCY_SHIFT);
+    }
+
+    /**
+     * Called when an operation of the given type times out or fails.
+     */
+    void onFailed(String operation) {
+
+        final Pace pace = getPace( operation );
+        pace.guard = Math.min(
+            maxGuard,
+            Math.max( pace.guard * 2L, Math.max( step, pace.latency ) )
+        );
+        failures++;
+        Log.i( TAG, "Backed off " + operation + " to " + pace.guard + "ms" );
+    }
+
+    /**
+     * Called once subscribed; if nothing failed along the way, the guards are eased off.
+     */
+    void onSubscribed() {
+
+        if (failures == 0){
+            for (Pace pace : paces.values( )){
+                pace.guard -= (pace.guard >> 2);
+                if (pace.guard < MIN_GUARD){
+                    pace.guard = 0L;
+                }
+            }
+        }
+        failures = 0;
+    }
+
+    /**
+     * @return what's been learnt, as e.g. "subscribe:64:12;writeName:0:30".
+     */
+    String encode() {
+
+        final StringBuilder builder = new StringBuilder( );
+        for (Map.Entry<String, Pace> entry : paces.entrySet( )){
+            if (builder.length( ) > 0){
+                builder.append( ';' );
+            }
+            builder.append( entry.getKey( ) )
+                .append( ':' ).append( entry.getValue( ).guard )
+                .append( ':' ).append( entry.getValue( ).latency );
+        }
+        return builder.toString( );
+    }
+
+    /**
+     * Picks up what was learnt before, as given by {@link #encode()}; anything malformed
+     * is ignored.
+     */
+    void decode(String encoded) {
+
+        if (encoded == null || encoded.isEmpty( )){
+            return;
+        }
+        for (String item : encoded.split( ";" )){
+            final String[] fields = item.split( ":" );
+            if (fields.length != 3){
+                continue;
+            }
+            try {
+                final long guard = Long.parseLong( fields[1] );
+                final long latency = Long.parseLong( fields[2] );
+                final Pace pace = getPace( fields[0] );
+                pace.guard = Math.max( 0L, Math.min( guard, maxGuard ) );
+                pace.latency = latency;
+            }
+            catch (NumberFormatException ex) {
+                Log.w( TAG, "Ignoring malformed pacing: '" + item + "'" );
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "pacing (operation:guard:latency, in ms): " + encode( );
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Screens the events from the peripheral before they're handed over to be carried out, so that
+ * a flaky peripheral (or a stuck key) can't flood the commands, or the audio service behind them.
+ *
+ * An event is dropped if it repeats the last event let through within the debounce window, or
+ * if the token bucket for its class (transport, volume or STOP) is empty. Each bucket holds up
+ * to a burst of tokens, and refills at a steady rate. The release of a transport key is never
+ * rate-limited, so that a key is never left held down.
+ *
+ * Must only be used on one thread at a time, i.e. that on which the events come in.
+ */
+class InputFilter {
+
+    // Gives the classes of event, each of which has its own bucket
+    static final int CLASS_TRANSPORT = 0;
+    static final int CLASS_VOLUME = 1;
+    static final int CLASS_STOP = 2;
+
+    // Gives the burst size and refill rate (per second) of the bucket for each class
+    private static final int[] BURST = { 8, 32, 2 };
+    private static final int[] RATE = { 10, 50, 1 };
+
+    // Gives the number of milli-tokens in a token
+    private static final int TOKEN = 1000;
+
+    private final long window;
+    private final boolean limited;
+
+    private int lastValue = -1;
+    private long lastTime = 0L;
+
+    private final long[] tokens = new long[BURST.length];
+    private final long[] refilled = new long[BURST.length];
+
+    // Gives the number of events let through and dropped (by reason/class)
+    private int passed = 0, debounced = 0;
+    private final int[] dropped = new int[BURST.length];
+
+    /**
+     * @param window the time (in ms) within which a repeated event is dropped, or 0 for none.
+     * @param limited true if the rate of each class of event should be limited; false otherwise.
+     */
+    InputFilter(long window, boolean limited) {
+
+        this.window = window;
+        this.limited = limited;
+        for (int i = 0; i < tokens.length; i++){
+            tokens[i] = BURST[i] * TOKEN;
+            refilled[i] = -1L;
+        }
+    }
+
+    static int getClass(int value) {
+
+        if (value == RemoteControl.STOP){
+            return CLASS_STOP;
+        }
+        final int volume = RemoteControl.MUTE | RemoteControl.VOLUME_DOWN | RemoteControl.VOLUME_UP;
+        if ((value & RemoteControl.SET_VOLUME) == RemoteControl.SET_VOLUME || (value & volume) != 0){
+            return CLASS_VOLUME;
+        }
+        return CLASS_TRANSPORT;
+    }
+
+    private static boolean isRelease(int value) {
+        return ((value & (RemoteControl.TWO_STAGE | RemoteControl.ACTION_DOWN)) == RemoteControl.TWO_STAGE);
+    }
+
+    /**
+     * @param value the event.
+     * @param time the time (in ms) at which the event happened; should it come before that of
+     * the last event let through, it's taken to be the same.
+     * @return true if the event should be let through; false if it should be dropped.
+     */
+    boolean accept(int value, long time) {
+
+        // Never let time run backwards, e.g. between the last event of one frame and the
+        // first of the next
+        if (time < lastTime){
+            time = lastTime;
+        }
+
+        // Drop repeats within the window
+        if (value == lastValue && (time - lastTime) < window){
+            debounced++;
+            return false;
+        }
+
+        // Take a token from the event's bucket, once topped up for the time since it was last
+        final int c = getClass( value );
+        if (limited && !(c == CLASS_TRANSPORT && isRelease( value ))){
+            if (refilled[c] >= 0L && time > refilled[c]){
+                tokens[c] = Math.min( tokens[c] + (time - refilled[c]) * RATE[c], BURST[c] * TOKEN );
+            }
+            refilled[c] = Math.max( time, refilled[c] );
+            if (tokens[c] < TOKEN){
+                dropped[c]++;
+                return false;
+            }
+            tokens[c] -= TOKEN;
+        }
+
+        lastValue = value;
+        lastTime = time;
+        passed++;
+        return true;
+    }
+
+    int getPassed() {
+        return passed;
+    }
+
+    int getDebounced() {
+        return debounced;
+    }
+
+    /**
+     * @param c the class of event, e.g. {@link #CLASS_VOLUME}.
+     * @return the number of events of the class dropped for want of a token.
+     */
+    int getDropped(int c) {
+        return dropped[c];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "passed: %d, debounced: %d, limited: %d transport, %d volume, %d stop",
+            passed, debounced, dropped[CLASS_TRANSPORT], dropped[CLASS_VOLUME], dropped[CLASS_STOP]
+        );
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of ints, for exactly one producer thread and one consumer thread.
+ *
+ * Each side owns one counter, which only it advances; the other side only ever reads it. When
+ * the buffer is full, the value offered is dropped and counted, rather than blocking the producer.
+ */
+class IntRingBuffer {
+
+    private final int[] buffer;
+    private final int mask;
+
+    // Gives the number of values written (by the producer), and read (by the consumer)
+    private final AtomicLong written = new AtomicLong( );
+    private final AtomicLong read = new AtomicLong( );
+
+    // Gives the number of values dropped for want of room; only written by the producer
+    private volatile int overflows = 0;
+
+    /**
+     * @param capacity the number of values the buffer can hold; rounded up to a power of two.
+     */
+    IntRingBuffer(int capacity) {
+
+        final int size = Integer.highestOneBit( Math.max( capacity - 1, 1 ) ) << 1;
+        this.buffer = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds the given value; only to be called by the producer.
+     *
+     * @return true if added; false if dropped because the buffer is full.
+     */
+    boolean offer(int value) {
+
+        final long w = written.get( );
+        if ((w - read.get( )) >= buffer.length){
+            overflows++;
+            return false;
+        }
+        buffer[(int) w & mask] = value;
+        written.lazySet( w + 1 );
+        return true;
+    }
+
+    /**
+     * Removes as many values as are available, up to the length of the given batch, into it;
+     * only to be called by the consumer.
+     *
+     * @return the number of values removed.
+     */
+    int drainTo(int[] batch) {
+        return drainTo( batch, Long.MAX_VALUE );
+    }
+
+    /**
+     * Removes as many values as are available from before the given position, up to the length
+     * of the given batch, into it; only to be called by the consumer.
+     *
+     * @param position as per {@link #getPosition()}.
+     * @return the number of values removed.
+     */
+    int drainTo(int[] batch, long position) {
+
+        final long r = read.get( );
+        final long end = Math.min( written.get( ), position );
+        final int count = (int) Math.max( Math.min( end - r, batch.length ), 0L );
+        for (int i = 0; i < count; i++){
+            batch[i] = buffer[(int) (r + i) & mask];
+        }
+        read.lazySet( r + count );
+        return count;
+    }
+
+    /**
+     * @return the position the next value added will have, i.e. the number of values added
+     * so far; may be read by either side.
+     */
+    long getPosition() {
+        return written.get( );
+    }
+
+    boolean isEmpty() {
+        return (written.get( ) == read.get( ));
+    }
+
+    int getOverflows() {
+        return overflows;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Receives measurements of the link to a remote control, as they are made.
+ */
+interface LinkMetrics {
+
+    /**
+     * Called for each event whose time of sending is known.
+     *
+     * @param value the event.
+     * @param latency the time (in ms) from the event on the peripheral to its receipt here.
+     */
+    void onEventLatency(int value, long latency);
+
+    /**
+     * Called for each batch of frames acknowledged to the peripheral.
+     *
+     * @param frames the number of frames in the batch.
+     * @param processing the mean time (in ns) taken to process each of them.
+     */
+    void onAcknowledged(int frames, long processing);
+
+    /**
+     * Called once subscribed.
+     *
+     * @param elapsed the time (in ms) from connecting to being subscribed.
+     * @param guard the longest interval (in ms) kept between GATT operations along the way.
+     */
+    void onSubscribed(long elapsed, long guard);
+
+    /**
+     * Called for each frame with a sequence number.
+     *
+     * @param lost the number of frames found to be missing before it.
+     */
+    void onFrame(int lost);
+
+    /**
+     * Called whenever the PHY in use is learnt, or changes.
+     *
+     * @param tx the PHY on which we transmit, e.g. {@link android.bluetooth.BluetoothDevice#PHY_LE_2M}.
+     * @param rx the PHY on which we receive.
+     */
+    void onPhy(int tx, int rx);
+
+    /**
+     * Called on unsubscribing, with what the input filter made of the events.
+     *
+     * @param passed the number of events let through.
+     * @param debounced the number dropped as repeats.
+     * @param limited the number dropped for want of a token.
+     */
+    void onFiltered(int passed, int debounced, int limited);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Summarises the measurements of a link, for logging.
+ */
+class LinkStatistics implements LinkMetrics {
+
+    private long events = 0L;
+    private long latencySum = 0L;
+    private long latencyMin = Long.MAX_VALUE, latencyMax = Long.MIN_VALUE;
+
+    private long acknowledged = 0L;
+    private long processingSum = 0L;
+
+    private long subscribed = -1L;
+    private long guard = 0L;
+
+    private long frames = 0L;
+    private long lost = 0L;
+
+    private int txPhy = 0, rxPhy = 0;
+
+    private int passed = -1, debounced = 0, limited = 0;
+
+    @Override
+    public synchronized void onEventLatency(int value, long latency) {
+
+        events++;
+        latencySum += latency;
+        latencyMin = Math.min( latencyMin, latency );
+        latencyMax = Math.max( latencyMax, latency );
+    }
+
+    @Override
+    public synchronized void onAcknowledged(int frames, long processing) {
+
+        acknowledged += frames;
+        processingSum += (processing * frames);
+    }
+
+    @Override
+    public synchronized void onSubscribed(long elapsed, long guard) {
+
+        this.subscribed = elapsed;
+        this.guard = guard;
+    }
+
+    @Override
+    public synchronized void onFrame(int lost) {
+
+        frames++;
+        this.lost += lost;
+    }
+
+    @Override
+    public synchronized void onPhy(int tx, int rx) {
+
+        txPhy = tx;
+        rxPhy = rx;
+    }
+
+    @Override
+    public synchronized void onFiltered(int passed, int debounced, int limited) {
+
+        this.passed = passed;
+        this.debounced = debounced;
+        this.limited = limited;
+    }
+
+    private static String toString(int phy) {
+
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "1M";
+
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+
+            case BluetoothDevice.PHY_LE_CODED:
+                return "Coded";
+
+            default:
+                return "?";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        final String latency = (events == 0L)
+            ? "latency: n/a"
+            : "latency (ms): " + latencyMin + "/" + (latencySum / events) + "/" + latencyMax
+                + " (min/mean/max of " + events + ")";
+        final String processing = (acknowledged == 0L)
+            ? "processing: n/a"
+            : "processing (us): " + (processingSum / acknowledged / 1000L)
+                + " (mean of " + acknowledged + " acknowledged)";
+        final String setup = (subscribed < 0L)
+            ? "subscribed: n/a"
+            : "subscribed (ms): " + subscribed + ((guard > 0L) ? " (guarded by up to " + guard + ")" : "");
+        final String phy = (txPhy == 0)
+            ? "phy: n/a"
+            : "phy (tx/rx): " + toString( txPhy ) + "/" + toString( rxPhy );
+        final String loss = (frames == 0L)
+            ? "frames: n/a"
+            : "frames: " + frames + " (lost " + lost + ")";
+        final String filtered = (passed < 0)
+            ? "events: n/a"
+            : "events: " + passed + " (debounced " + debounced + ", limited " + limited + ")";
+        return setup + ", " + phy + ", " + latency + ", " + loss + ", " + processing + ", " + filtered;
+    }
+}
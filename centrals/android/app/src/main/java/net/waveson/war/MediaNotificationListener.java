@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.service.notification.NotificationListenerService;
+
+/**
+ * Does nothing itself; once the user has granted it notification access, it entitles us to
+ * follow the active media sessions (c.f. MediaSessionManager#getActiveSessions).
+ */
+public class MediaNotificationListener extends NotificationListenerService {
+}
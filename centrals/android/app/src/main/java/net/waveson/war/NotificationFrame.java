@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Decodes the payload of a notification on {@link RemoteControl#NOTIFY_UUID}.
+ *
+ * A payload of a single byte is a single event, as sent by older peripherals. A payload of
+ * two or more bytes is a frame: a header byte, followed by one or more events, each of which
+ * is an event byte and the time (in ms, 0-255) elapsed since the previous event in the frame.
+ * So a frame can carry almost (MTU-3)/2 events, e.g. a burst of volume steps whilst a key is
+ * held down.
+ *
+ * The header is a set of flags, each of which says that an optional field follows it:
+ * {@link #FLAG_SEQUENCE} gives a sequence number (0-255) which the peripheral increments
+ * once per frame; {@link #FLAG_TIMESTAMP} gives the time of the first event in the frame on the
+ * peripheral's clock (in ms, as a 32-bit little-endian value); {@link #FLAG_CLOCK} gives the
+ * time echoed back from a write to {@link RemoteControl#CLOCK_UUID} (likewise), in which case
+ * the frame need not carry any events.
+ *
+ * An event byte of {@link #EVENT_SET_VOLUME} (which means nothing on its own) is followed by
+ * an extra byte, after the time, giving a volume level; it decodes to
+ * {@link RemoteControl#SET_VOLUME} with the level in the low byte.
+ *
+ * Instances are re-used from one notification to the next, so as not to allocate per payload.
+ */
+class NotificationFrame {
+
+    // Gives the size, in bytes, of the frame header and of each event in it
+    static final int HEADER_SIZE = 1;
+    static final int EVENT_SIZE = 2;
+
+    // Gives the flags in the frame header
+    static final int FLAG_SEQUENCE = 0x00000001;
+    static final int FLAG_TIMESTAMP = 0x00000002;
+    static final int FLAG_CLOCK = 0x00000004;
+
+    // Gives the event which is followed by a volume level
+    static final int EVENT_SET_VOLUME = RemoteControl.ACTION_DOWN;
+
+    private final int[] events = new int[256];
+    private final int[] offsets = new int[256];
+    private int count = 0;
+
+    private int header = 0;
+    private int sequence = 0;
+    private int timestamp = 0;
+    private int clock = 0;
+
+    boolean parse(byte[] payload) {
+        return parse( payload, (payload == null) ? 0 : payload.length );
+    }
+
+    /**
+     * Decodes the first length bytes of the given payload, replacing the result of any
+     * previous call.
+     *
+     * @return true if the payload held at least one event; false otherwise.
+     */
+    boolean parse(byte[] payload, int length) {
+
+        count = 0;
+        header = 0;
+        sequence = 0;
+        timestamp = 0;
+        clock = 0;
+        if (payload == null || length < 1){
+            return false;
+        }
+
+        // Single-byte payloads pre-date frames
+        if (length == 1){
+            events[0] = (payload[0] & 0xFF);
+            offsets[0] = 0;
+            count = 1;
+            return true;
+        }
+
+        // Read the header and the optional fields which it flags
+        header = (payload[0] & 0xFF);
+        int i = HEADER_SIZE;
+        if (hasSequence( )){
+            if (i >= length){
+                return false;
+            }
+            sequence = (payload[i++] & 0xFF);
+        }
+        if (hasTimestamp( )){
+            if ((i + 4) > length){
+                return false;
+            }
+            timestamp = getInt( payload, i );
+            i += 4;
+        }
+        if (hasClock( )){
+            if ((i + 4) > length){
+                return false;
+            }
+            clock = getInt( payload, i );
+            i += 4;
+        }
+
+        int offset = 0;
+        while ((i + EVENT_SIZE) <= length && count < events.length){
+            int event = (payload[i] & 0xFF);
+            offset += (payload[i+1] & 0xFF);
+            i += EVENT_SIZE;
+            if (event == EVENT_SET_VOLUME){
+                if (i >= length){
+                    break;
+                }
+                event = RemoteControl.SET_VOLUME | (payload[i++] & 0xFF);
+            }
+            events[count] = event;
+            offsets[count] = offset;
+            count++;
+        }
+        return (count > 0) || hasClock( );
+    }
+
+    private static int getInt(byte[] payload, int index) {
+        return (payload[index] & 0xFF)
+            | ((payload[index+1] & 0xFF) << 8)
+            | ((payload[index+2] & 0xFF) << 16)
+            | ((payload[index+3] & 0xFF) << 24);
+    }
+
+    boolean hasSequence() {
+        return ((header & FLAG_SEQUENCE) == FLAG_SEQUENCE);
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    boolean hasTimestamp() {
+        return ((header & FLAG_TIMESTAMP) == FLAG_TIMESTAMP);
+    }
+
+    /**
+     * @return the time of the first event in the frame, on the peripheral's clock.
+     */
+    int getTimestamp() {
+        return timestamp;
+    }
+
+    boolean hasClock() {
+        return ((header & FLAG_CLOCK) == FLAG_CLOCK);
+    }
+
+    /**
+     * @return the time of our write to {@link RemoteControl#CLOCK_UUID}, on our clock.
+     */
+    int getClock() {
+        return clock;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getEvent(int index) {
+        return events[index];
+    }
+
+    /**
+     * @return the time (in ms) between the first event in the frame and the given one.
+     */
+    int getOffset(int index) {
+        return offsets[index];
+    }
+}
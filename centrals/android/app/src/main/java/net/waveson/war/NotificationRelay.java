@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.UUID;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Relays notifications from the binder thread on which the stack delivers them to the thread of
+ * a handler, without allocating anything per notification.
+ *
+ * Each notification's value is copied (along with the time it arrived) into the next of a fixed
+ * set of slots, since the characteristic it came from will have moved on by the time it's read.
+ * The slots form a bounded queue for exactly one producer (the binder thread) and one consumer
+ * (the handler's thread), after the manner of {@link IntRingBuffer}; a single runnable, posted
+ * only when there's none outstanding, drains them. Should the slots all be full, the
+ * notification is dropped and counted.
+ */
+class NotificationRelay {
+
+    // Gives the longest value an attribute can have
+    static final int MAX_VALUE_SIZE = 512;
+
+    interface Listener {
+
+        /**
+         * Called on the handler's thread for each notification, in the order they arrived.
+         *
+         * @param value the value of the notification, which is only good until this returns.
+         * @param length the length of the value.
+         * @param time the time (as per SystemClock.elapsedRealtime( )) at which it arrived.
+         */
+        void onRelayed(BluetoothGatt gatt, UUID uuid, byte[] value, int length, long time);
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+
+    private final BluetoothGatt[] gatts;
+    private final UUID[] uuids;
+    private final byte[][] values;
+    private final int[] lengths;
+    private final long[] times;
+    private final int mask;
+
+    // Gives the number of slots filled (by the producer), and emptied (by the consumer)
+    private final AtomicLong written = new AtomicLong( );
+    private final AtomicLong read = new AtomicLong( );
+
+    // Gives the number of notifications dropped for want of a slot; only written by the producer
+    private volatile int overflows = 0;
+
+    private final AtomicBoolean draining = new AtomicBoolean( false );
+    private final Runnable drain = new Runnable( ) {
+        @Override
+        public void run() {
+            drain( );
+        }
+    };
+
+    /**
+     * @param capacity the number of notifications which can be waiting; rounded up to a power
+     * of two.
+     */
+    NotificationRelay(Handler handler, Listener listener, int capacity) {
+
+        this.handler = handler;
+        this.listener = listener;
+        final int size = Integer.highestOneBit( Math.max( capacity - 1, 1 ) ) << 1;
+        this.gatts = new BluetoothGatt[size];
+        this.uuids = new UUID[size];
+        this.values = new byte[size][MAX_VALUE_SIZE];
+        this.lengths = new int[size];
+        this.times = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Copies the given notification, and has the handler's thread pass it on; only to be called
+     * by the producer.
+     *
+     * @return true if relayed; false if dropped because every slot is full.
+     */
+    boolean relay(BluetoothGatt gatt, UUID uuid, byte[] value, long time) {
+
+        final long w = written.get( );
+        if ((w - read.get( )) >= values.length){
+            overflows++;
+            return false;
+        }
+        final int slot = (int) w & mask;
+        final int length = (value == null) ? 0 : Math.min( value.length, MAX_VALUE_SIZE );
+        if (length > 0){
+            System.arraycopy( value, 0, values[slot], 0, length );
+        }
+        gatts[slot] = gatt;
+        uuids[slot] = uuid;
+        lengths[slot] = length;
+        times[slot] = time;
+        written.lazySet( w + 1 );
+
+        // Have the handler drain the slots, unless it's already due to
+        if (!draining.getAndSet( true )){
+            handler.post( drain );
+        }
+        return true;
+    }
+
+    private void drain() {
+
+        // Clear the flag first, so that anything relayed from here on gets a drain of its own
+        draining.set( false );
+        long r = read.get( );
+        while (r < written.get( )){
+            final int slot = (int) r & mask;
+            listener.onRelayed( gatts[slot], uuids[slot], values[slot], lengths[slot], times[slot] );
+            read.lazySet( ++r );
+        }
+    }
+
+    /**
+     * Forgets any notifications still waiting, e.g. once the handler's queue has been cleared;
+     * only to be called by the consumer.
+     */
+    void clear() {
+
+        read.lazySet( written.get( ) );
+        draining.set( false );
+    }
+
+    int getOverflows() {
+        return overflows;
+    }
+}
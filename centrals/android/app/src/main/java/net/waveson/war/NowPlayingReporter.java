@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Arrays;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import android.media.MediaMetadata;
+
+import android.media.session.PlaybackState;
+import android.media.session.MediaController;
+
+/**
+ * Keeps the peripheral up-to-date with what's playing in the active media session: the title,
+ * the artist and the playback state.
+ *
+ * Only the fields which have changed since the last update are sent, each as a field identifier,
+ * a length (0-255) and the value (UTF-8 for strings; the {@link PlaybackState} state otherwise).
+ * The update is then written to {@link RemoteControl#NOW_PLAYING_UUID} in MTU-sized chunks, in
+ * the same way as our name is written to {@link RemoteControl#NAME_UUID}.
+ *
+ * The session reported on is the one followed by {@link ActiveMediaSession}; without notification
+ * access, there is none and nothing is reported.
+ */
+class NowPlayingReporter extends MediaController.Callback implements ActiveMediaSession.Listener {
+
+    static final int FIELD_TITLE = 0x00000001;
+    static final int FIELD_ARTIST = 0x00000002;
+    static final int FIELD_STATE = 0x00000003;
+
+    private static final int MAX_FIELD_LENGTH = 255;
+
+    private final ActiveMediaSession activeMediaSession;
+
+    private MediaController controller = null;
+    private SubscriptionManager subscriptionManager = null;
+
+    // Gives the values last handed over to be sent
+    private String title = null, artist = null;
+    private int state = -1;
+
+    NowPlayingReporter(ActiveMediaSession activeMediaSession) {
+        this.activeMediaSession = activeMediaSession;
+    }
+
+    /**
+     * Starts reporting to the peripheral at the other end of the given subscription,
+     * beginning with everything we know.
+     */
+    void start(SubscriptionManager subscriptionManager) {
+
+        this.subscriptionManager = subscriptionManager;
+        reset( );
+        setController( activeMediaSession.getController( ) );
+    }
+
+    /**
+     * Forgets what was last handed over, so that the next update carries every field; for when
+     * the peripheral can't be relied upon to have had it.
+     */
+    void reset() {
+
+        title = null;
+        artist = null;
+        state = -1;
+    }
+
+    void stop() {
+
+        if (subscriptionManager == null){
+            return;
+        }
+        subscriptionManager = null;
+        setController( null );
+    }
+
+    @Override
+    public void onActiveSessionChanged(MediaController controller) {
+
+        if (subscriptionManager != null){
+            setController( controller );
+        }
+    }
+
+    private void setController(MediaController controller) {
+
+        if (this.controller != null){
+            this.controller.unregisterCallback( this );
+        }
+        this.controller = controller;
+        if (controller != null){
+            controller.registerCallback( this );
+        }
+        report( );
+    }
+
+    @Override
+    public void onMetadataChanged(MediaMetadata metadata) {
+        report( );
+    }
+
+    @Override
+    public void onPlaybackStateChanged(PlaybackState state) {
+        report( );
+    }
+
+    private static String getString(MediaMetadata metadata, String key) {
+
+        final String value = (metadata == null) ? null : metadata.getString( key );
+        return (value == null) ? "" : value;
+    }
+
+    private static void putField(ByteArrayOutputStream delta, int field, String value) {
+
+        // Truncate to the maximum length, without splitting a code point
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        if (bytes.length > MAX_FIELD_LENGTH){
+            int length = MAX_FIELD_LENGTH;
+            while (length > 0 && (bytes[length] & 0xC0) == 0x80){
+                length--;
+            }
+            bytes = Arrays.copyOf( bytes, length );
+        }
+        delta.write( field );
+        delta.write( bytes.length );
+        delta.write( bytes, 0, bytes.length );
+    }
+
+    private void report() {
+
+        if (subscriptionManager == null){
+            return;
+        }
+
+        final MediaMetadata metadata = (controller == null) ? null : controller.getMetadata( );
+        final PlaybackState playbackState = (controller == null) ? null : controller.getPlaybackState( );
+        final String title = getString( metadata, MediaMetadata.METADATA_KEY_TITLE );
+        final String artist = getString( metadata, MediaMetadata.METADATA_KEY_ARTIST );
+        final int state = (playbackState == null)
+            ? PlaybackState.STATE_NONE
+            : playbackState.getState( );
+
+        // Gather up whatever has changed
+        ByteArrayOutputStream delta = new ByteArrayOutputStream( );
+        if (!title.equals( this.title )){
+            putField( delta, FIELD_TITLE, title );
+        }
+        if (!artist.equals( this.artist )){
+            putField( delta, FIELD_ARTIST, artist );
+        }
+        if (state != this.state){
+            delta.write( FIELD_STATE );
+            delta.write( 1 );
+            delta.write( state );
+        }
+        if (delta.size( ) == 0){
+            return;
+        }
+        this.title = title;
+        this.artist = artist;
+        this.state = state;
+        subscriptionManager.writeNowPlaying( delta.toByteArray( ) );
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers what we've learnt about the peripherals we've connected to, keyed by address,
+ * across connections and restarts.
+ */
+class PeripheralCache {
+
+    private static final String NAME = "net.waveson.war.peripherals";
+
+    private static final String DATABASE_HASH_KEY = ".database_hash";
+    private static final String PACING_KEY = ".pacing";
+    private static final String NAME_DIGEST_KEY = ".name_digest";
+    private static final String SUBSCRIPTIONS_KEY = ".subscriptions";
+
+    private final SharedPreferences shared;
+
+    PeripheralCache(Context context) {
+        this.shared = context.getSharedPreferences( NAME, Context.MODE_PRIVATE );
+    }
+
+    /**
+     * @return true if the given hash is that of the GATT database of the given peripheral
+     * the last time we successfully subscribed to it.
+     */
+    boolean hasDatabaseHash(String address, int hash) {
+
+        final String key = address + DATABASE_HASH_KEY;
+        return shared.contains( key ) && (shared.getInt( key, 0 ) == hash);
+    }
+
+    void putDatabaseHash(String address, int hash) {
+
+        shared.edit( )
+            .putInt( address + DATABASE_HASH_KEY, hash )
+            .apply( );
+    }
+
+    /**
+     * @return the characteristics (as a comma-separated list of UUIDs) whose notifications
+     * the given peripheral has been left with enabled; null if none, or not known.
+     */
+    String getSubscriptions(String address) {
+        return shared.getString( address + SUBSCRIPTIONS_KEY, null );
+    }
+
+    void putSubscriptions(String address, String subscriptions) {
+
+        shared.edit( )
+            .putString( address + SUBSCRIPTIONS_KEY, subscriptions )
+            .apply( );
+    }
+
+    void removeSubscriptions(String address) {
+
+        shared.edit( )
+            .remove( address + SUBSCRIPTIONS_KEY )
+            .apply( );
+    }
+
+    /**
+     * @return true if the given digest is that of the name we last sent to the given peripheral.
+     */
+    boolean hasNameDigest(String address, long digest) {
+
+        final String key = address + NAME_DIGEST_KEY;
+        return shared.contains( key ) && (shared.getLong( key, 0L ) == digest);
+    }
+
+    void putNameDigest(String address, long digest) {
+
+        shared.edit( )
+            .putLong( address + NAME_DIGEST_KEY, digest )
+            .apply( );
+    }
+
+    void removeNameDigest(String address) {
+
+        shared.edit( )
+            .remove( address + NAME_DIGEST_KEY )
+            .apply( );
+    }
+
+    /**
+     * @return the pacing of GATT operations learnt for the given peripheral, as given by
+     * {@link GattPacing#encode()}; null if there's none.
+     */
+    String getPacing(String address) {
+        return shared.getString( address + PACING_KEY, null );
+    }
+
+    void putPacing(String address, String pacing) {
+
+        shared.edit( )
+            .putString( address + PACING_KEY, pacing )
+            .apply( );
+    }
+}
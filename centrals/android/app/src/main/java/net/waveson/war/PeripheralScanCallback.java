@@ -22,7 +22,10 @@ class PeripheralScanCallback extends ScanCallback {
         if (service == null){
             return;
         }
-        service.onScanSucceeded( scanResult.getDevice( ) );
+        service.onScanSucceeded(
+            scanResult.getDevice( ),
+            Advertisement.parse( scanResult.getScanRecord( ) )
+        );
     }
 
     public PeripheralScanCallback(RemoteControlService service) {
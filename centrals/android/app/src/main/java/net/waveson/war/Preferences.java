@@ -4,6 +4,10 @@
  */
 package net.waveson.war;
 
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+
 import android.util.Log;
 
 import android.content.SharedPreferences;
@@ -16,11 +20,36 @@ class Preferences implements SharedPreferences.OnSharedPreferenceChangeListener
     private long gattDelay = 128L;
     private boolean autoRetry = false;
     private long retryInterval = 1024L;
+    private final int[] keyCodes = CommandTable.DEFAULT_KEY_CODES.clone( );
+    private int[][] macros = new int[0][];
+    private volatile CommandTable commandTable = new CommandTable( keyCodes, macros );
+    private volatile boolean transportControls = false;
+    private long debounceWindow = 20L;
+    private long latencyTarget = 50L;
+    private int preferredPhy = 1; // c.f. BluetoothDevice.PHY_LE_1M
+    private boolean rateLimited = true;
+    private volatile boolean hapticFeedback = false;
+    private volatile Set<String> keyEventPackages = Collections.emptySet( );
 
     static final String GATT_DELAY_KEY = "gatt_delay";
     static final String BONDED_ONLY_KEY = "bonded_only";
     static final String AUTO_RETRY_KEY = "auto_retry";
     static final String RETRY_INTERVAL_KEY = "retry_interval";
+    static final String TRANSPORT_CONTROLS_KEY = "transport_controls";
+    static final String KEY_EVENT_PACKAGES_KEY = "key_event_packages";
+    static final String MACROS_KEY = "macros";
+    static final String DEBOUNCE_WINDOW_KEY = "debounce_window";
+    static final String LATENCY_TARGET_KEY = "latency_target";
+    static final String PREFERRED_PHY_KEY = "preferred_phy";
+    static final String RATE_LIMITED_KEY = "rate_limited";
+    static final String HAPTIC_FEEDBACK_KEY = "haptic_feedback";
+
+    // Gives the keys of the keymap preferences, parallel to CommandTable.TRANSPORT_KEYS
+    static final String[] KEYMAP_KEYS = {
+        "keymap_play_pause",
+        "keymap_back",
+        "keymap_forward"
+    };
 
     private long init(SharedPreferences shared, String key, long fallback) {
 
@@ -74,6 +103,91 @@ class Preferences implements SharedPreferences.OnSharedPreferenceChangeListener
         }
 
         retryInterval = init( shared, RETRY_INTERVAL_KEY, retryInterval );
+
+        for (int i = 0; i < KEYMAP_KEYS.length; i++){
+            keyCodes[i] = (int) init( shared, KEYMAP_KEYS[i], keyCodes[i] );
+        }
+        macros = parseMacros( shared.getString( MACROS_KEY, "" ) );
+        commandTable = new CommandTable( keyCodes, macros );
+
+        try {
+            if (shared.contains( TRANSPORT_CONTROLS_KEY )){
+                transportControls = shared.getBoolean( TRANSPORT_CONTROLS_KEY, false );
+            }else{
+                shared.edit( )
+                    .putBoolean( TRANSPORT_CONTROLS_KEY, transportControls )
+                    .apply( );
+            }
+        }
+        catch (Exception ex) {
+            Log.e( TAG,"Exception whilst retrieving/parsing the dispatch mode", ex );
+        }
+
+        keyEventPackages = parsePackages( shared.getString( KEY_EVENT_PACKAGES_KEY, "" ) );
+
+        debounceWindow = init( shared, DEBOUNCE_WINDOW_KEY, debounceWindow );
+        latencyTarget = init( shared, LATENCY_TARGET_KEY, latencyTarget );
+        preferredPhy = (int) init( shared, PREFERRED_PHY_KEY, preferredPhy );
+
+        try {
+            if (shared.contains( RATE_LIMITED_KEY )){
+                rateLimited = shared.getBoolean( RATE_LIMITED_KEY, true );
+            }else{
+                shared.edit( )
+                    .putBoolean( RATE_LIMITED_KEY, rateLimited )
+                    .apply( );
+            }
+        }
+        catch (Exception ex) {
+            Log.e( TAG,"Exception whilst retrieving/parsing the rate limit", ex );
+        }
+
+        try {
+            if (shared.contains( HAPTIC_FEEDBACK_KEY )){
+                hapticFeedback = shared.getBoolean( HAPTIC_FEEDBACK_KEY, false );
+            }else{
+                shared.edit( )
+                    .putBoolean( HAPTIC_FEEDBACK_KEY, hapticFeedback )
+                    .apply( );
+            }
+        }
+        catch (Exception ex) {
+            Log.e( TAG,"Exception whilst retrieving/parsing the haptic feedback", ex );
+        }
+    }
+
+    /**
+     * Parses the user's macros, one per line (or separated by semi-colons) and numbered from 1;
+     * a macro which fails to parse does nothing, but keeps its number.
+     */
+    private static int[][] parseMacros(String value) {
+
+        if (value.trim( ).isEmpty( )){
+            return new int[0][];
+        }
+        final String[] strings = value.split( "[;\\n]" );
+        final int[][] result = new int[strings.length][];
+        for (int i = 0; i < strings.length; i++){
+            try {
+                result[i] = CommandTable.parseMacro( strings[i] );
+            }
+            catch (IllegalArgumentException ex) {
+                Log.w( TAG, "Ignoring macro " + (i + 1) + ": " + ex.getMessage( ) );
+                result[i] = new int[0];
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> parsePackages(String value) {
+
+        final Set<String> result = new HashSet<>( );
+        for (String name : value.split( "[,\\s]+" )){
+            if (!name.isEmpty( )){
+                result.add( name );
+            }
+        }
+        return result;
     }
 
     boolean isBondedOnly() {
@@ -92,6 +206,49 @@ class Preferences implements SharedPreferences.OnSharedPreferenceChangeListener
         return retryInterval;
     }
 
+    CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * @return true if media keys should be performed on the active session's transport
+     *         controls, where possible; false if they should always be dispatched as key events.
+     */
+    boolean isTransportControls() {
+        return transportControls;
+    }
+
+    /**
+     * @return true if media keys for the given app should be dispatched as key events,
+     *         regardless of {@link #isTransportControls()}.
+     */
+    boolean isKeyEventPackage(String packageName) {
+        return keyEventPackages.contains( packageName );
+    }
+
+    long getDebounceWindow() {
+        return debounceWindow;
+    }
+
+    long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    /**
+     * @return the PHY to prefer for links, e.g. {@link android.bluetooth.BluetoothDevice#PHY_LE_2M}.
+     */
+    int getPreferredPhy() {
+        return preferredPhy;
+    }
+
+    boolean isRateLimited() {
+        return rateLimited;
+    }
+
+    boolean isHapticFeedback() {
+        return hapticFeedback;
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences shared, String key) {
 
@@ -120,6 +277,67 @@ class Preferences implements SharedPreferences.OnSharedPreferenceChangeListener
             retryInterval = getChangedPreference( shared, key, retryInterval );
             return;
         }
+
+        if (TRANSPORT_CONTROLS_KEY.equals( key )){
+            transportControls = shared.getBoolean(
+                key,
+                transportControls
+            );
+            return;
+        }
+
+        if (KEY_EVENT_PACKAGES_KEY.equals( key )){
+            keyEventPackages = parsePackages( shared.getString( key, "" ) );
+            Log.d( TAG, key + " changed to " + keyEventPackages );
+            return;
+        }
+
+        if (DEBOUNCE_WINDOW_KEY.equals( key )){
+            debounceWindow = getChangedPreference( shared, key, debounceWindow );
+            return;
+        }
+
+        if (LATENCY_TARGET_KEY.equals( key )){
+            latencyTarget = getChangedPreference( shared, key, latencyTarget );
+            return;
+        }
+
+        if (PREFERRED_PHY_KEY.equals( key )){
+            preferredPhy = (int) getChangedPreference( shared, key, preferredPhy );
+            return;
+        }
+
+        if (RATE_LIMITED_KEY.equals( key )){
+            rateLimited = shared.getBoolean(
+                key,
+                rateLimited
+            );
+            return;
+        }
+
+        if (HAPTIC_FEEDBACK_KEY.equals( key )){
+            hapticFeedback = shared.getBoolean(
+                key,
+                hapticFeedback
+            );
+            return;
+        }
+
+        if (MACROS_KEY.equals( key )){
+            macros = parseMacros( shared.getString( key, "" ) );
+            commandTable = new CommandTable( keyCodes, macros );
+            return;
+        }
+
+        for (int i = 0; i < KEYMAP_KEYS.length; i++){
+            if (KEYMAP_KEYS[i].equals( key )){
+                keyCodes[i] = (int) getChangedPreference( shared, key, keyCodes[i] );
+
+                // Rebuild the table, rather than patching it, so the change is all-or-nothing
+                commandTable = new CommandTable( keyCodes, macros );
+                return;
+            }
+        }
     }
 
     private long getChangedPreference(SharedPreferences shared, String key, long fallback) {
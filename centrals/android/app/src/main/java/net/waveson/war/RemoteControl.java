@@ -13,6 +13,11 @@ interface RemoteControl {
     UUID SERVICE_UUID = UUID.fromString( "ACB76F70-2B52-4234-AFB4-A8E9CEB925A4" );
     UUID NOTIFY_UUID = UUID.fromString( "70BC9D28-EBEC-4EC6-9B27-6B79A718D34C" );
     UUID NAME_UUID = UUID.fromString( "7F2D6DF8-1610-4729-9038-A49163702EE2" );
+    UUID CAPABILITIES_UUID = UUID.fromString( "B3DBA012-7EBB-41B5-97A3-44BEA56E5A7A" );
+    UUID ACK_UUID = UUID.fromString( "54DD026C-05CF-4C8C-A491-A7BBE8E4AC0F" );
+    UUID STATE_UUID = UUID.fromString( "02389227-4D82-4FF5-9700-1959C4543D3D" );
+    UUID NOW_PLAYING_UUID = UUID.fromString( "B938978D-E224-4574-BBD7-20C3F2E174F3" );
+    UUID CLOCK_UUID = UUID.fromString( "F8191D51-9A5B-4A2F-B6EC-DE8FAA4D438A" );
 
     int TWO_STAGE = 0x00000080;
     int ACTION_DOWN = 0x00000040;
@@ -25,8 +30,19 @@ interface RemoteControl {
     int PLAY_PAUSE = 0x00000001;
     int STOP = 0x000000FF;
 
+    // Gives the (reserved) values which run the macro numbered (1-63) in the low 6 bits,
+    // i.e. ACTION_DOWN without TWO_STAGE, which no key press ever produces
+    int MACRO = 0x00000040;
+    int MACRO_MASK = (TWO_STAGE | ACTION_DOWN);
+    int MACRO_COUNT = 0x0000003F;
+
+    // Gives the (out of band) command to set the volume to the level in the low byte (0-255)
+    int SET_VOLUME = 0x00000100;
+
     int NOTIFICATION_MSG = 0x00000080;
     int SUBSCRIPTION_MSG = 0x00000081;
+    int RESYNC_MSG = 0x00000082;
+    int FRAME_MSG = 0x00000083;
 
     int IS_SUBSCRIBED = 1;
 
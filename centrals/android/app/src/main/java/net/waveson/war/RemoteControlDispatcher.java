@@ -4,16 +4,69 @@
  */
 package net.waveson.war;
 
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.os.Handler;
 
+import android.util.Log;
+
 class RemoteControlDispatcher implements Dispatcher, SubscriptionManager.Callback {
 
-    private final SubscriptionManager.Callback delegate;
+    private static final String TAG = RemoteControlDispatcher.class.getSimpleName( );
+
+    // Gives the number of events, etc. which can be waiting, and the most handled per batch
+    private static final int CAPACITY = 1024;
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Gives what becomes of the link, on the main thread.
+     */
+    interface Listener {
+        void onConnectionError(int string, Object... etc);
+        void onError(int string, Object... args);
+        void onSubscriptionChanged(boolean subscribed);
+    }
 
+    private final Listener listener;
+    private final Handler main;
+
+    private final CommandProcessor commands;
     private final Handler handler;
 
-    RemoteControlDispatcher(SubscriptionManager.Callback delegate, Handler handler) {
-        this.delegate = delegate;
+    // Gives the events, frames and resyncs from the peripheral, in order, on their way to the
+    // command processor; each entry packs the message code into the top byte and its argument
+    // below it. The producer is the GATT callback thread and the consumer is the handler's thread
+    private final IntRingBuffer events = new IntRingBuffer( CAPACITY );
+    private final AtomicBoolean draining = new AtomicBoolean( false );
+    private final int[] batch = new int[BATCH_SIZE];
+
+    // Gives the subscription changes and errors, in order; each is handed over after the events
+    // offered before it, and before those offered after it, without ever being dropped
+    private abstract class Control implements Runnable {
+        final long position = events.getPosition( );
+    }
+    private final Queue<Control> controls = new ConcurrentLinkedQueue<>( );
+
+    private int overflows = 0;
+    private final Runnable drain = new Runnable( ) {
+        @Override
+        public void run() {
+            drain( );
+        }
+    };
+
+    /**
+     * @param main the handler of the main thread, to which the listener is confined.
+     * @param handler the handler of the thread to which the command processor is confined.
+     */
+    RemoteControlDispatcher(Listener listener, Handler main, CommandProcessor commands, Handler handler) {
+        this.listener = listener;
+        this.main = main;
+        this.commands = commands;
         this.handler = handler;
     }
 
@@ -29,20 +82,30 @@ class RemoteControlDispatcher implements Dispatcher, SubscriptionManager.Callbac
 
     @Override
     public void onConnectionError(final int string, final Object... etc) {
-        dispatch( new Runnable( ) {
+        offer( new Control( ) {
             @Override
             public void run() {
-                delegate.onConnectionError( string, etc );
+                main.post( new Runnable( ) {
+                    @Override
+                    public void run() {
+                        listener.onConnectionError( string, etc );
+                    }
+                } );
             }
         } );
     }
 
     @Override
     public void onError(final int string, final Object... args) {
-        dispatch( new Runnable( ) {
+        offer( new Control( ) {
             @Override
             public void run() {
-                delegate.onError( string, args );
+                main.post( new Runnable( ) {
+                    @Override
+                    public void run() {
+                        listener.onError( string, args );
+                    }
+                } );
             }
         } );
     }
@@ -50,19 +113,128 @@ class RemoteControlDispatcher implements Dispatcher, SubscriptionManager.Callbac
     @Override
     public void onSubscriptionChanged(final boolean subscribed) {
 
-        handler.obtainMessage(
-            RemoteControl.SUBSCRIPTION_MSG,
-            (subscribed ? RemoteControl.IS_SUBSCRIBED : 0), 0
-        ).sendToTarget( );
+        // The command processor hears of it first, then the main thread
+        offer( new Control( ) {
+            @Override
+            public void run() {
+                commands.onSubscriptionChanged( subscribed );
+                main.sendMessage( main.obtainMessage(
+                    RemoteControl.SUBSCRIPTION_MSG,
+                    (subscribed ? RemoteControl.IS_SUBSCRIBED : 0), 0
+                ) );
+            }
+        } );
+    }
+
+    @Override
+    public void onNowPlayingAbandoned() {
+        offer( new Control( ) {
+            @Override
+            public void run() {
+                commands.onNowPlayingAbandoned( );
+            }
+        } );
     }
 
     @Override
     public void onNotification(final int value) {
 
-        // Send a message because instantiating a new object (a Runnable) to convey 1 byte seems..
-        // wasteful? Also, we can expect this to be called a lot during the lifetime of the app,
-        // whereas we hope the error handlers will never/rarely be touched
-        handler.obtainMessage( RemoteControl.NOTIFICATION_MSG, value, 0 )
-            .sendToTarget( );
+        // Queue an int because instantiating a new object (a Runnable, or even a Message) to
+        // convey 1 byte seems.. wasteful? Also, we can expect this to be called a lot during the
+        // lifetime of the app, whereas we hope the error handlers will never/rarely be touched
+        offer( RemoteControl.NOTIFICATION_MSG, value );
+    }
+
+    @Override
+    public void onFrame(final int sequence) {
+        offer( RemoteControl.FRAME_MSG, sequence );
+    }
+
+    @Override
+    public void onResync(final int lost) {
+        offer( RemoteControl.RESYNC_MSG, lost );
+    }
+
+    private void offer(int what, int arg) {
+
+        events.offer( (what << 24) | (arg & 0x00FFFFFF) );
+        schedule( );
+    }
+
+    private void offer(Control control) {
+
+        controls.add( control );
+        schedule( );
+    }
+
+    /**
+     * Has the handler drain the events and controls, unless it's already due to; the drain waits
+     * its turn behind anything already posted, e.g. the rest of a macro.
+     */
+    private void schedule() {
+
+        if (!draining.getAndSet( true )){
+            handler.post( drain );
+        }
+    }
+
+    void drain() {
+
+        // Clear the flag first, so that anything offered from here on gets a drain of its own
+        draining.set( false );
+        for (;;){
+            // Take the position before looking for a control, so that no event offered after
+            // a control we haven't seen yet can be handed over ahead of it
+            final long position = events.getPosition( );
+            final Control control = controls.peek( );
+            if (control == null){
+                if (drainEvents( position ) == 0){
+                    break;
+                }
+                continue;
+            }
+            drainEvents( control.position );
+            controls.poll( );
+            control.run( );
+        }
+
+        // Treat anything dropped for want of room as lost in transit
+        final int overflows = events.getOverflows( );
+        if (overflows != this.overflows){
+            Log.w( TAG, "Dropped " + (overflows - this.overflows) + " event(s) on overflow" );
+            commands.onResync( overflows - this.overflows );
+            this.overflows = overflows;
+        }
+    }
+
+    /**
+     * Hands over the events from before the given position.
+     *
+     * @return the number of events handed over.
+     */
+    private int drainEvents(long position) {
+
+        int total = 0;
+        int count;
+        while ((count = events.drainTo( batch, position )) > 0){
+            for (int i = 0; i < count; i++){
+                final int arg = (batch[i] & 0x00FFFFFF);
+                switch (batch[i] >>> 24) {
+                    case RemoteControl.NOTIFICATION_MSG:
+                        commands.onNotification( arg );
+                        break;
+
+                    case RemoteControl.FRAME_MSG:
+                        commands.onFrame( arg );
+                        break;
+
+                    case RemoteControl.RESYNC_MSG:
+                        commands.onResync( arg );
+                        break;
+                }
+            }
+            total += count;
+        }
+        return total;
     }
 }
@@ -8,11 +8,13 @@ import java.util.Collections;
 
 import java.lang.ref.WeakReference;
 
-import android.os.Build;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
+import android.os.PowerManager;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
 
 import android.app.Service;
@@ -30,7 +32,8 @@ import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
 
 import android.media.AudioManager;
-import android.media.ToneGenerator;
+
+import android.media.session.MediaController;
 
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothAdapter;
@@ -45,22 +48,8 @@ import android.support.annotation.Nullable;
 
 import android.support.v4.content.LocalBroadcastManager;
 
-public class RemoteControlService extends Service implements RemoteControl, SubscriptionManager.Callback {
-
-    private static boolean oneplus = false;
-    static {
-        String[] strings = new String[]{
-            Build.BRAND,
-            Build.MANUFACTURER
-        };
-        for (String string : strings){
-            final boolean match = string.toLowerCase( ).contains( "oneplus" );
-            if (match){
-                oneplus = true;
-                break;
-            }
-        }
-    }
+public class RemoteControlService extends Service
+    implements RemoteControl, RemoteControlDispatcher.Listener, CommandProcessor.Platform {
 
     private static final String TAG = RemoteControlService.class.getSimpleName();
 
@@ -84,7 +73,15 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
 
     private Preferences preferences;
 
-    private ToneGenerator toneGenerator;
+    private Feedback feedback;
+
+    private AudioManager audioManager;
+    private AudioStateMirror audioStateMirror;
+
+    private ActiveMediaSession activeMediaSession;
+    private VolumeStateReporter volumeStateReporter;
+    private VolumeUi volumeUi;
+    private NowPlayingReporter nowPlayingReporter;
 
     private static class RemoteControlHandler extends Handler {
 
@@ -98,16 +95,6 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
         public void handleMessage(Message msg) {
 
             switch (msg.what) {
-                case NOTIFICATION_MSG:
-                {
-                    RemoteControlService service = serviceWeakReference.get( );
-                    if (service == null){
-                        break;
-                    }
-                    service.onNotification( msg.arg1 );
-                }
-                break;
-
                 case SUBSCRIPTION_MSG:
                 {
                     RemoteControlService service = serviceWeakReference.get( );
@@ -127,6 +114,14 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
     private RemoteControlHandler handler;
     private RemoteControlDispatcher dispatcher;
 
+    // Gives the thread to which commands (and everything they act upon) are confined
+    private HandlerThread commandThread;
+    private Handler commandHandler;
+    private CommandProcessor commands;
+
+    // Gives the thread to which the link to the peripheral is confined
+    private HandlerThread gattThread;
+
     private BluetoothAdapter bluetoothAdapter = null;
     private BluetoothDevice bluetoothDevice = null;
 
@@ -136,6 +131,19 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
     private BluetoothGatt bluetoothGatt = null;
     private SubscriptionManager subscriptionManager = null;
 
+    // Gives the sequence numbers seen from the current remote control, across (re)connections
+    private SequenceTracker sequenceTracker = null;
+
+    // Gives the measurements of the current link
+    private LinkStatistics linkStatistics = null;
+
+    // Gives the screen which events from the current remote control pass through
+    private InputFilter inputFilter = null;
+
+    // Gives what the current remote control advertised about itself, if anything
+    private Advertisement advertisement = null;
+    private PeripheralCache peripheralCache;
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -158,28 +166,64 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
         preferences.init( shared );
         shared.registerOnSharedPreferenceChangeListener( preferences );
 
-        // Create the handler and dispatcher
+        peripheralCache = new PeripheralCache( this );
+
+        // Create the threads, the command processor and the dispatcher
         handler = new RemoteControlHandler( this );
-        dispatcher = new RemoteControlDispatcher( this, handler );
+        commandThread = new HandlerThread( "Commands", Process.THREAD_PRIORITY_URGENT_DISPLAY );
+        commandThread.start( );
+        commandHandler = new Handler( commandThread.getLooper( ) );
+        gattThread = new HandlerThread( "Gatt", Process.THREAD_PRIORITY_URGENT_DISPLAY );
+        gattThread.start( );
+
+        // Look up the audio manager once, rather than per notification
+        audioManager = this.getSystemService( AudioManager.class );
+        audioStateMirror = new AudioStateMirror( STREAM_TYPE, audioManager );
+        commands = new CommandProcessor( commandHandler, preferences, audioStateMirror, this );
+        dispatcher = new RemoteControlDispatcher( this, handler, commands, commandHandler );
+        volumeStateReporter = new VolumeStateReporter( audioStateMirror, dispatcher );
+        audioStateMirror.setListener( volumeStateReporter );
+        activeMediaSession = new ActiveMediaSession( this );
+        volumeUi = new VolumeUi(
+            STREAM_TYPE,
+            audioManager,
+            this.getSystemService( PowerManager.class ),
+            commandHandler
+        );
+        nowPlayingReporter = new NowPlayingReporter( activeMediaSession );
+        activeMediaSession.setListener( nowPlayingReporter );
 
-        // Initialise the tone generator
-        try {
-            AudioManager audioManager = this.getSystemService( AudioManager.class );
-            toneGenerator = new ToneGenerator( AudioManager.STREAM_NOTIFICATION, 100 );
-        }
-        catch (Exception ex) {
-            Log.w( TAG, "Exception whilst initialising tone generator", ex );
-            toneGenerator = null;
-        }
+        // Start following the audio state and media sessions on the command thread, so that
+        // their callbacks come on it too
+        commandHandler.post( new Runnable( ) {
+            @Override
+            public void run() {
+                audioStateMirror.start( RemoteControlService.this, commandHandler );
+                activeMediaSession.start( );
+            }
+        } );
+
+        // Start loading the feedback sounds (in the background)
+        feedback = new Feedback( this );
     }
 
     @Override
     public void onDestroy() {
 
-        if (toneGenerator != null){
-            toneGenerator.release( );
-        }
-        toneGenerator = null;
+        commandHandler.post( new Runnable( ) {
+            @Override
+            public void run() {
+                volumeStateReporter.stop( );
+                audioStateMirror.stop( RemoteControlService.this );
+                nowPlayingReporter.stop( );
+                activeMediaSession.stop( );
+                commands.cancelPipeline( );
+                volumeUi.cancel( );
+            }
+        } );
+        commandThread.quitSafely( );
+        feedback.release( );
+        gattThread.quitSafely( );
         PreferenceManager.getDefaultSharedPreferences( this )
             .unregisterOnSharedPreferenceChangeListener( preferences );
         Log.d( TAG, "Destroying Service.." );
@@ -278,8 +322,8 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
         // after a short delay
         subscriptionManager.setCallback( null );
         subscriptionManager.unsubscribeFromNotifications( bluetoothGatt, true );
-        subscriptionManager.reset( this );
-        dispatcher.dispatch(
+        subscriptionManager.reset( dispatcher );
+        handler.postDelayed(
             new Runnable( ) {
                 @Override
                 public void run() {
@@ -363,9 +407,16 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
         bluetoothLeScanner = null;
     }
 
-    void onScanSucceeded(BluetoothDevice bluetoothDevice) {
+    void onScanSucceeded(BluetoothDevice bluetoothDevice, Advertisement advertisement) {
 
         stopScan( );
+        if (advertisement != null){
+            Log.d( TAG, "Advertised: " + advertisement );
+        }
+        this.advertisement = advertisement;
+        if (sequenceTracker == null || !bluetoothDevice.equals( this.bluetoothDevice )){
+            sequenceTracker = new SequenceTracker( );
+        }
         this.bluetoothDevice = bluetoothDevice;
         subscribe( );
     }
@@ -414,18 +465,31 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
             this,
             dispatcher,
             bluetoothAdapter.getName( ),
-            dispatcher,
+            gattThread.getLooper( ),
+            sequenceTracker,
             preferences.getGattDelay( )
         );
-        dispatcher.dispatch( new Runnable( ) { // c.f. https://stackoverflow.com/a/23478737
+        linkStatistics = new LinkStatistics( );
+        subscriptionManager.setLinkMetrics( linkStatistics );
+        subscriptionManager.setPeripheralCache( peripheralCache );
+        subscriptionManager.setLatencyTarget( preferences.getLatencyTarget( ) );
+        subscriptionManager.setPreferredPhy( preferences.getPreferredPhy( ) );
+        inputFilter = new InputFilter( preferences.getDebounceWindow( ), preferences.isRateLimited( ) );
+        subscriptionManager.setInputFilter( inputFilter );
+        commands.setSubscriptionManager( subscriptionManager );
+        if (advertisement != null){
+            subscriptionManager.setAdvertisement(
+                advertisement,
+                peripheralCache.hasDatabaseHash(
+                    bluetoothDevice.getAddress( ),
+                    advertisement.getDatabaseHash( )
+                )
+            );
+        }
+        handler.post( new Runnable( ) { // c.f. https://stackoverflow.com/a/23478737
             @Override
             public void run() {
-                bluetoothGatt = bluetoothDevice.connectGatt(
-                    RemoteControlService.this,
-                    false,
-                    subscriptionManager,
-                    BluetoothDevice.TRANSPORT_LE
-                );
+                bluetoothGatt = subscriptionManager.connect( bluetoothDevice );
             }
         } );
     }
@@ -513,7 +577,9 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
 
         if (subscriptionManager != null){
             subscriptionManager.setCallback( null );
+            subscriptionManager.close( );
         }
+        commands.setSubscriptionManager( null );
         if (bluetoothGatt != null){
             // BluetoothGatt#disconnect() is redundant, or worse?
             // c.f. https://android.jlelse.eu/lessons-for-first-time-android-bluetooth-le-developers-i-learned-the-hard-way-fee07646624
@@ -536,6 +602,9 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
                 ? null
                 : bluetoothDevice.getName( );
         if (!subscribed){
+            if (linkStatistics != null){
+                Log.i( TAG, "Unsubscribed; " + linkStatistics );
+            }
             unhook( );
         }
 
@@ -543,6 +612,14 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
         if (subscribed){
             dismissSplash( );
 
+            // Remember how the remote control was laid out, for next time
+            if (advertisement != null && bluetoothDevice != null){
+                peripheralCache.putDatabaseHash(
+                    bluetoothDevice.getAddress( ),
+                    advertisement.getDatabaseHash( )
+                );
+            }
+
             if (name == null || name.isEmpty( )){
                 content = (retries == 0)
                     ? getString( R.string.notification_content_subscribed_unpaired )
@@ -574,130 +651,76 @@ public class RemoteControlService extends Service implements RemoteControl, Subs
             .updateNotification( this, content, flags );
     }
 
-    private void toggleRingerMode(AudioManager audioManager) {
+    private static final int STREAM_TYPE = AudioManager.STREAM_MUSIC;
 
-        // If we think we're on a OnePlus device, then do nothing
-        // because it seems to interfere w/the in-built hardware alert slider?
-        // (It confuses me, regardless..)
-        if (oneplus){
-            Log.d( TAG, "On a OnePlus device.." );
-            return;
-        }
+    @Override
+    public void dispatchMediaKeyEvent(KeyEvent event) {
+        audioManager.dispatchMediaKeyEvent( event );
+    }
 
-        // If the ringer mode is vibrate, make it normal;
-        // if it is normal, switch to vibrate
-        //
-        // If the ringer mode is anything else (i.e. silent),
-        // then we ignore the command because I'm only interested
-        // in being able to flip between normal and vibrate and
-        // interacting with 'silent' involves obtaining additional
-        // permissions (ACCESS_NOTIFICATION_POLICY)
-        switch (audioManager.getRingerMode( )){
-            case AudioManager.RINGER_MODE_NORMAL:
-                audioManager.setRingerMode(
-                    AudioManager.RINGER_MODE_VIBRATE
-                );
-                break;
+    @Override
+    public boolean dispatchTransportControl(int code) {
 
-            case AudioManager.RINGER_MODE_VIBRATE:
-                audioManager.setRingerMode(
-                    AudioManager.RINGER_MODE_NORMAL
-                );
-                break;
+        if (!preferences.isTransportControls( )){
+            return false;
+        }
+        final MediaController controller = activeMediaSession.getController( );
+        if (controller == null || preferences.isKeyEventPackage( controller.getPackageName( ) )){
+            return false;
         }
+        if (Log.isLoggable( TAG, Log.DEBUG )){
+            Log.d( TAG, "Transport control code: " + code );
+        }
+        return ActiveMediaSession.dispatchMediaKey( controller, code );
     }
 
-    private static final int STREAM_TYPE = AudioManager.STREAM_MUSIC;
+    @Override
+    public void adjustStreamVolume(int direction) {
+        audioManager.adjustStreamVolume( STREAM_TYPE, direction, volumeUi.getFlags( ) );
+    }
 
-    private void adjustVolume(AudioManager audioManager, int direction) {
+    @Override
+    public void setStreamVolume(int index) {
+        audioManager.setStreamVolume( STREAM_TYPE, index, volumeUi.getFlags( ) );
+    }
 
-        // Bounds check w/audio feedback
-        if (direction == AudioManager.ADJUST_RAISE){
-            final int max = audioManager.getStreamMaxVolume( STREAM_TYPE );
-            if (audioManager.getStreamVolume( STREAM_TYPE ) >= max){
-                toneGenerator.startTone( ToneGenerator.TONE_PROP_BEEP );
-                return;
-            }
-        }
-        audioManager.adjustStreamVolume(
-            STREAM_TYPE,
-            direction,
-            AudioManager.FLAG_SHOW_UI
-        );
+    @Override
+    public void setRingerMode(int ringerMode) {
+        audioManager.setRingerMode( ringerMode );
     }
 
     @Override
-    public void onNotification(int value) {
+    public void playFeedback(int cue) {
+        feedback.play( cue, preferences.isHapticFeedback( ) );
+    }
 
-        // Look for an early out
-        if ((value & STOP) == STOP){
-            Log.d( TAG, "'STOP' recv'd" );
-            stopIfStarted( );
-            return;
-        }
+    @Override
+    public void startReporting(SubscriptionManager subscriptionManager) {
 
-        try {
-            AudioManager audioManager = this.getSystemService( AudioManager.class );
-            final boolean muted = audioManager.isStreamMute( STREAM_TYPE );
-
-            if ((value & MUTE) == MUTE){
-                // Where we get separate reports for the up/down state of the key on the peripheral
-                // only apply the mute function *after* the key is released
-                final boolean apply = ((value & TWO_STAGE) != TWO_STAGE) ||
-                    ((value & ACTION_DOWN) == 0);
-                if (apply){
-                    if ((value & TOGGLE_RINGER_MODE) == TOGGLE_RINGER_MODE){
-                        toggleRingerMode( audioManager );
-                    }else{
-                        audioManager.adjustStreamVolume(
-                            STREAM_TYPE,
-                            (muted ? AudioManager.ADJUST_UNMUTE : AudioManager.ADJUST_MUTE),
-                            AudioManager.FLAG_SHOW_UI
-                        );
-                    }
-                }
-            }else if (!muted){
-                // Where we get separate reports for the up/down state of the key on the peripheral
-                // only apply volume changes when the key is pressed
-                final boolean apply = ((value & TWO_STAGE) != TWO_STAGE) ||
-                    ((value & ACTION_DOWN) == ACTION_DOWN);
-                if (apply){
-                    final int volume_mask = VOLUME_UP | VOLUME_DOWN;
-                    if ((value & volume_mask) != 0){
-                        // If it's not up, it's down..
-                        final int direction = ((value & VOLUME_UP) == VOLUME_UP)
-                            ? AudioManager.ADJUST_RAISE
-                            : AudioManager.ADJUST_LOWER;
-                        adjustVolume( audioManager, direction );
-                    }
-                }
-            }
+        activeMediaSession.start( ); // In case notification access has since been granted
+        volumeStateReporter.start( subscriptionManager );
+        nowPlayingReporter.start( subscriptionManager );
+    }
 
-            int event = KeyEvent.KEYCODE_UNKNOWN;
-            if ((value & PLAY_PAUSE) == PLAY_PAUSE){
-                event = KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE;
-            }else if ((value & BACK) == BACK){
-                event = KeyEvent.KEYCODE_MEDIA_PREVIOUS;
-            }else if ((value & FORWARD) == FORWARD){
-                event = KeyEvent.KEYCODE_MEDIA_NEXT;
-            }
-            if (event == KeyEvent.KEYCODE_UNKNOWN){
-                return;
-            }
-            Log.d( TAG, "KeyEvent code: " + event );
+    @Override
+    public void stopReporting() {
 
-            if ((value & TWO_STAGE) == TWO_STAGE){
-                final int action = ((value & ACTION_DOWN) == ACTION_DOWN)
-                    ? KeyEvent.ACTION_DOWN
-                    : KeyEvent.ACTION_UP;
-                audioManager.dispatchMediaKeyEvent( new KeyEvent( action, event ) );
-            }else{
-                audioManager.dispatchMediaKeyEvent( new KeyEvent( KeyEvent.ACTION_DOWN, event ) );
-                audioManager.dispatchMediaKeyEvent( new KeyEvent( KeyEvent.ACTION_UP, event ) );
+        volumeStateReporter.stop( );
+        nowPlayingReporter.stop( );
+    }
+
+    @Override
+    public void resetReporting() {
+        nowPlayingReporter.reset( );
+    }
+
+    @Override
+    public void stop() {
+        handler.post( new Runnable( ) {
+            @Override
+            public void run() {
+                stopIfStarted( );
             }
-        }
-        catch (Exception ex) {
-            Log.w( TAG, "Exception whilst handling notification", ex );
-        }
+        } );
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+/**
+ * Tracks the sequence numbers of the frames received from a peripheral, so as to tell frames
+ * which are new from those which are replayed, and to count the frames which never arrived
+ * at all.
+ *
+ * Each link carries on from where the link before left off, so that frames the peripheral
+ * replays on reconnecting are still recognised as such. Only a frame numbered from the very
+ * start of the sequence, well short of where the previous link left off, is taken to mean that
+ * the peripheral has reset (e.g. had its battery changed) in between.
+ */
+class SequenceTracker {
+
+    // Gives how far behind the last sequence number a frame can be and still be considered
+    // a replay; anything further behind is taken to be that far ahead, with the frames in
+    // between lost
+    private static final int REPLAY_WINDOW = 16;
+
+    private int last = -1;
+
+    // Gives the last sequence number seen on the previous link, and whether the last frame
+    // tracked showed the peripheral to have started over
+    private int previous = -1;
+    private boolean restarted = false;
+
+    private long received = 0L, lost = 0L, duplicates = 0L;
+
+    /**
+     * Starts counting afresh for a new link.
+     */
+    void restart() {
+
+        if (last >= 0){
+            previous = last;
+        }
+        last = -1;
+        restarted = false;
+        received = 0L;
+        lost = 0L;
+        duplicates = 0L;
+    }
+
+    /**
+     * @return the number of frames lost immediately before the given one, or -1 if the given
+     * frame is a duplicate of one already seen.
+     */
+    int track(int sequence) {
+
+        restarted = false;
+        if (last < 0){
+            if (previous >= 0){
+                final int delta = (sequence - previous) & 0xFF;
+
+                // The last frame(s) of the previous link, replayed over this one
+                if (delta == 0 || delta > (256 - REPLAY_WINDOW)){
+                    duplicates++;
+                    return -1;
+                }
+
+                // A sequence started over, rather than carried on
+                restarted = (sequence < REPLAY_WINDOW) && ((previous - sequence) > REPLAY_WINDOW);
+            }
+
+            // Whatever the peripheral numbered whilst disconnected was never sent, so isn't lost
+            last = sequence;
+            received++;
+            return 0;
+        }
+
+        final int delta = (sequence - last) & 0xFF;
+        if (delta == 0 || delta > (256 - REPLAY_WINDOW)){
+            duplicates++;
+            return -1;
+        }
+        last = sequence;
+        received++;
+        final int gap = delta - 1;
+        lost += gap;
+        return gap;
+    }
+
+    /**
+     * @return true if the last frame tracked was the first since the peripheral started over;
+     * false otherwise.
+     */
+    boolean hasRestarted() {
+        return restarted;
+    }
+
+    /**
+     * @return the proportion (0-1) of frames sent over the current link which were lost.
+     */
+    float getLossRate() {
+
+        final long sent = received + lost;
+        return (sent == 0L) ? 0.0f : ((float) lost / sent);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "received: %d, lost: %d, duplicates: %d (loss rate: %.2f%%)",
+            received, lost, duplicates, getLossRate( ) * 100.0f
+        );
+    }
+}
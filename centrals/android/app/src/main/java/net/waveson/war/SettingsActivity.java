@@ -39,6 +39,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
     static {
         TIME_KEYS.add( Preferences.GATT_DELAY_KEY );
         TIME_KEYS.add( Preferences.RETRY_INTERVAL_KEY );
+        TIME_KEYS.add( Preferences.DEBOUNCE_WINDOW_KEY );
+        TIME_KEYS.add( Preferences.LATENCY_TARGET_KEY );
     }
 
     /**
@@ -176,6 +178,13 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // guidelines.
             bindPreferenceSummaryToValue(findPreference(Preferences.GATT_DELAY_KEY));
             bindPreferenceSummaryToValue(findPreference(Preferences.RETRY_INTERVAL_KEY));
+            bindPreferenceSummaryToValue(findPreference(Preferences.DEBOUNCE_WINDOW_KEY));
+            bindPreferenceSummaryToValue(findPreference(Preferences.LATENCY_TARGET_KEY));
+            bindPreferenceSummaryToValue(findPreference(Preferences.PREFERRED_PHY_KEY));
+            bindPreferenceSummaryToValue(findPreference(Preferences.KEY_EVENT_PACKAGES_KEY));
+            for (String key : Preferences.KEYMAP_KEYS) {
+                bindPreferenceSummaryToValue(findPreference(key));
+            }
         }
 
         @Override
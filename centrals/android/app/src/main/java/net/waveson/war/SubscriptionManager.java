@@ -9,10 +9,19 @@ import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.List;
 import java.util.UUID;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.ArrayDeque;
 
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.zip.CRC32;
+
+import android.os.Build;
+import android.os.Looper;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
 
 import android.util.Log;
 
@@ -27,24 +36,190 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 
-class SubscriptionManager extends BluetoothGattCallback {
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Subscribes to a remote control's notifications, and handles the link thereafter.
+ *
+ * All of the state of the link is confined to the thread of the looper given on construction:
+ * the GATT callbacks are relayed to it from the binder thread on which they come, and the methods
+ * called from elsewhere (e.g. {@link #acknowledge(int, long)}) just post a message to it. So
+ * nothing in here needs to be synchronised; the callback is published through a volatile
+ * reference. Notifications, which come far more often than anything else, are copied into a
+ * {@link NotificationRelay} rather than posted one runnable apiece.
+ *
+ * The GATT operations themselves are run through a {@link GattOperationQueue}, each starting as
+ * soon as the last has completed, rather than after a fixed delay.
+ */
+class SubscriptionManager extends BluetoothGattCallback
+    implements Handler.Callback, GattOperationQueue.Listener, NotificationRelay.Listener {
 
     private static final String TAG = SubscriptionManager.class.getSimpleName( );
 
+    // Gives the messages by which other threads hand work over to ours
+    static final int ACK_MSG = 1;
+    static final int STATE_MSG = 2;
+    static final int NOW_PLAYING_MSG = 3;
+    static final int UNSUBSCRIBE_MSG = 4;
+    static final int RESET_MSG = 5;
+    static final int CLOSE_MSG = 6;
+
+    // Gives the time (in ms) to wait for services to be discovered, which may take a while
+    // when they're not in the stack's cache
+    private static final long DISCOVERY_TIMEOUT = 15000L;
+
+    // Gives the ATT MTU to ask for (i.e. that which fits a single LE packet, given data length
+    // extension), the size of the ATT header, and the largest value we can write before asking
+    private static final int REQUESTED_MTU = 247;
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final int DEFAULT_PAYLOAD_SIZE = 20;
+
+    // Gives the number of notifications which can be waiting to be relayed to our thread
+    private static final int RELAY_CAPACITY = 32;
+
+    // Gives the number of times to retry a write which the stack was too busy to take
+    private static final int MAX_RETRIES = 3;
+
+    // Gives the client characteristic configuration descriptor, by which notifications are
+    // turned on and off at the peripheral's end
+    private static final UUID CLIENT_CONFIG_UUID = UUID.fromString( "00002902-0000-1000-8000-00805f9b34fb" );
+
     private static Set<UUID> uuids = new HashSet<>();
     static {
         uuids.add( RemoteControl.NOTIFY_UUID );
     }
 
-    private BlockingDeque<UUID> backlog = new LinkedBlockingDeque<>( );
-    private BlockingDeque<UUID> subscribed = new LinkedBlockingDeque<>( );
+    private final Deque<UUID> backlog = new ArrayDeque<>( );
+    private final Deque<UUID> subscribed = new ArrayDeque<>( );
+
+    // Gives the resumed subscriptions yet to be confirmed with the peripheral
+    private final Deque<UUID> unverified = new ArrayDeque<>( );
+
+    // Gives the largest value we can write in one go (i.e. the ATT MTU, less its header)
+    private int payloadSize = DEFAULT_PAYLOAD_SIZE;
+    private final NotificationFrame frame = new NotificationFrame( );
+    private final SequenceTracker sequenceTracker;
+    private final ClockSync clockSync = new ClockSync( );
+    private volatile LinkMetrics metrics = null;
+    private volatile InputFilter inputFilter = null;
+
+    // Gives the features agreed with the peripheral for the current link
+    private Capabilities capabilities = Capabilities.LEGACY;
+
+    // Gives what the peripheral advertised about itself, if anything, and whether its
+    // GATT database is as we last saw it
+    private volatile Advertisement advertisement = null;
+    private volatile boolean known = false;
+
+    // Gives the frames processed, but not yet acknowledged
+    private static final long ACK_INTERVAL = 32L;
+    private final Acknowledgements acknowledgements = new Acknowledgements( );
+    private boolean flushPending = false;
+    private boolean ackQueued = false;
+    private final Runnable flush = new Runnable( ) {
+        @Override
+        public void run() {
+            flushPending = false;
+            flushAcknowledgements( );
+        }
+    };
+    private final GattOperationQueue.Operation writeAck = new GattOperationQueue.Operation( ) {
+        @Override
+        public boolean start() {
+            return doFlushAcknowledgements( );
+        }
+    };
+
+    private BluetoothGatt gatt = null;
+
+    // Gives the characteristics looked up so far on the current link, by UUID
+    private final HashMap<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>( );
 
-    private int mtu = 20;
+    // Gives the latest state of the local device, waiting to be sent to the peripheral
+    private final byte[] state = new byte[3];
+    private boolean statePending = false;
+    private final GattOperationQueue.Operation writeState = new GattOperationQueue.Operation( ) {
+        @Override
+        public boolean start() {
+            return doSendState( );
+        }
+    };
+    private final Runnable sendState = new Runnable( ) {
+        @Override
+        public void run() {
+            if (!statePending){
+                statePending = true;
+                operations.enqueue( "writeState", writeState );
+            }
+        }
+    };
+
+    // Gives the updates of what's playing which are waiting to be sent, and the one being sent
+    private final Queue<byte[]> nowPlaying = new ArrayDeque<>( );
+    private ChunkedBuffer nowPlayingChunks = null;
+    private int nowPlayingChunkSize = 0;
+    private boolean nowPlayingSending = false;
+    private int nowPlayingRetries = 0;
+    private final GattOperationQueue.Operation writeNowPlaying = new GattOperationQueue.Operation( ) {
+        @Override
+        public boolean start() {
+            return doSendNowPlaying( );
+        }
+    };
+    private final Runnable sendNowPlaying = new Runnable( ) {
+        @Override
+        public void run() {
+            operations.enqueue( "writeNowPlaying", writeNowPlaying );
+        }
+    };
     private ChunkedUtf8StringBuffer deviceName;
+    private final long deviceNameDigest;
+
+    // Gives the retries of our name and clock, should the stack be too busy to take them
+    private int nameRetries = 0, clockRetries = 0;
+
+    // Gives whether the peripheral was taken to have our name already, on this link
+    private boolean nameSkipped = false;
+    private final Runnable retryName = new Runnable( ) {
+        @Override
+        public void run() {
+            if (gatt != null){
+                sendDeviceName( gatt );
+            }
+        }
+    };
+    private final Runnable retryClock = new Runnable( ) {
+        @Override
+        public void run() {
+            if (gatt != null){
+                sendClock( gatt );
+            }
+        }
+    };
 
+    private final Handler handler;
+    private final NotificationRelay relay;
+    private int relayOverflows = 0;
     private final Dispatcher dispatcher;
     private long delay;
 
+    // Gives the GATT operations of subscribing and unsubscribing, run one after the other
+    private final GattOperationQueue operations;
+
+    // Gives the manager of the link's connection priority, and the latency (in ms) it aims for
+    private final ConnectionPriorityManager connectionPriority;
+    private volatile long latencyTarget = 0L;
+
+    // Gives the PHY to prefer for the link (from O), and those it actually uses
+    private volatile int preferredPhy = BluetoothDevice.PHY_LE_1M;
+    private int txPhy = 0, rxPhy = 0;
+
+    // Gives the peripheral we're connecting to, what we know of it and when we started
+    private volatile PeripheralCache peripheralCache = null;
+    private String address = null;
+    private long connectStarted = 0L;
+    private boolean resumed = false;
+
     private final Context context;
 
     interface Callback {
@@ -52,44 +227,218 @@ class SubscriptionManager extends BluetoothGattCallback {
         void onError(int string, Object... args);
         void onSubscriptionChanged(boolean subscribed);
         void onNotification(int value);
+        void onFrame(int sequence);
+        void onResync(int lost);
+        void onNowPlayingAbandoned();
     }
-    private Callback callback;
+    private volatile Callback callback;
 
-    private enum State { DISCONNECTED, CONNECTED, SUBSCRIBING, SUBSCRIBED, UNSUBSCRIBING, UNSUBSCRIBED }
-    private State state = State.DISCONNECTED;
+    private enum State { DISCONNECTED, CONNECTED, NEGOTIATING, SUBSCRIBING, SUBSCRIBED, UNSUBSCRIBING, UNSUBSCRIBED }
+    private State linkState = State.DISCONNECTED;
 
     private void setState(State state) {
-        this.state = state;
+        this.linkState = state;
     }
 
     private State getState() {
-        return this.state;
+        return this.linkState;
     }
 
+    /**
+     * @param looper the looper of the thread to confine the link to.
+     */
     SubscriptionManager(Context context,
                         Callback callback,
                         String deviceName,
-                        Dispatcher dispatcher,
+                        Looper looper,
+                        SequenceTracker sequenceTracker,
                         long delay) {
 
         this.context = context;
+        this.sequenceTracker = sequenceTracker;
         this.delay = delay;
-        this.dispatcher = dispatcher;
+        this.handler = new Handler( looper, this );
+        this.relay = new NotificationRelay( handler, this, RELAY_CAPACITY );
+        this.operations = new GattOperationQueue( handler, this );
+        this.connectionPriority = new ConnectionPriorityManager( handler );
+        this.dispatcher = new Dispatcher( ) {
+            @Override
+            public void dispatch(Runnable runnable) {
+                handler.post( runnable );
+            }
+
+            @Override
+            public void dispatch(Runnable runnable, long delay) {
+                handler.postDelayed( runnable, delay );
+            }
+        };
         setCallback( callback );
         this.deviceName = new ChunkedUtf8StringBuffer( deviceName );
+        this.deviceNameDigest = this.deviceName.getDigest( );
+    }
+
+    /**
+     * Connects to the given peripheral. The callbacks are left to come on the binder thread (rather
+     * than being handed a handler from O on), so that each notification can be copied, and its
+     * time taken, as soon as it arrives, before being relayed to our thread.
+     */
+    BluetoothGatt connect(BluetoothDevice device) {
+
+        address = device.getAddress( );
+        connectStarted = SystemClock.elapsedRealtime( );
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            return device.connectGatt(
+                context,
+                false,
+                this,
+                BluetoothDevice.TRANSPORT_LE,
+                getPhyMask( )
+            );
+        }
+        return device.connectGatt( context, false, this, BluetoothDevice.TRANSPORT_LE );
     }
 
-    synchronized void setCallback(Callback callback) {
+    void setCallback(Callback callback) {
         this.callback = callback;
     }
 
+    void setLinkMetrics(LinkMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setInputFilter(InputFilter inputFilter) {
+        this.inputFilter = inputFilter;
+    }
+
+    /**
+     * Takes the given capabilities to have been negotiated, without a peripheral to negotiate
+     * them with; only to be called on our thread.
+     */
+    @VisibleForTesting
+    void setCapabilities(Capabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Sets where to remember (and look up) how closely the GATT operations on each peripheral
+     * can be paced.
+     */
+    void setPeripheralCache(PeripheralCache peripheralCache) {
+        this.peripheralCache = peripheralCache;
+    }
+
+    /**
+     * Sets the latency (in ms) past which the link is given a high priority; 0 for none.
+     */
+    void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = latencyTarget;
+    }
+
+    /**
+     * Sets the PHY to prefer for the link, e.g. {@link BluetoothDevice#PHY_LE_2M} for shorter
+     * air time, or {@link BluetoothDevice#PHY_LE_CODED} for longer range; only from O.
+     */
+    void setPreferredPhy(int preferredPhy) {
+        this.preferredPhy = preferredPhy;
+    }
+
+    /**
+     * @return the mask of the PHYs to allow for the link; the 1M PHY is always allowed, since
+     * it's the only one every peripheral has.
+     */
+    private int getPhyMask() {
+
+        switch (preferredPhy) {
+            case BluetoothDevice.PHY_LE_2M:
+                return BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK;
+
+            case BluetoothDevice.PHY_LE_CODED:
+                return BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_CODED_MASK;
+
+            default:
+                return BluetoothDevice.PHY_LE_1M_MASK;
+        }
+    }
+
+    void setAdvertisement(Advertisement advertisement, boolean known) {
+        this.advertisement = advertisement;
+        this.known = known;
+    }
+
+    /**
+     * Readies us to connect again, with the given callback, once any work already handed over
+     * to our thread (e.g. unsubscribing) is done.
+     */
     void reset(Callback callback) {
-        setCallback( callback );
-        setState( State.DISCONNECTED );
+        handler.obtainMessage( RESET_MSG, callback ).sendToTarget( );
+    }
+
+    /**
+     * Abandons whatever work is left on our thread, once any work already handed over to it
+     * (e.g. unsubscribing) is done.
+     */
+    void close() {
+        handler.sendEmptyMessage( CLOSE_MSG );
+    }
+
+    private boolean isOnThread() {
+        return (Looper.myLooper( ) == handler.getLooper( ));
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+
+        switch (msg.what) {
+            case ACK_MSG:
+                onAcknowledge( msg.arg1, msg.arg2 );
+                return true;
+
+            case STATE_MSG:
+                state[0] = (byte) (msg.arg1 >>> 16);
+                state[1] = (byte) (msg.arg1 >>> 8);
+                state[2] = (byte) msg.arg1;
+                sendState.run( );
+                return true;
+
+            case NOW_PLAYING_MSG:
+                onNowPlaying( (byte[]) msg.obj );
+                return true;
+
+            case UNSUBSCRIBE_MSG:
+                doUnsubscribeFromNotifications( (BluetoothGatt) msg.obj, (msg.arg1 != 0) );
+                return true;
+
+            case RESET_MSG:
+                operations.clear( );
+                connectionPriority.stop( );
+                handler.removeCallbacks( retryName );
+                handler.removeCallbacks( retryClock );
+                ackQueued = false;
+                statePending = false;
+                nowPlaying.clear( );
+                nowPlayingChunks = null;
+                nowPlayingSending = false;
+                nowPlayingRetries = 0;
+                setCallback( (Callback) msg.obj );
+                setState( State.DISCONNECTED );
+                connectStarted = SystemClock.elapsedRealtime( );
+                return true;
+
+            case CLOSE_MSG:
+                operations.clear( );
+                connectionPriority.stop( );
+                handler.removeCallbacksAndMessages( null );
+                relay.clear( );
+                return true;
+
+            default:
+                return false;
+        }
     }
 
-    private synchronized void onConnectionError(int string, Object... etc) {
+    private void onConnectionError(int string, Object... etc) {
 
+        final Callback callback = this.callback;
         if (callback == null){
             Log.i( TAG, "onConnectionError( " + string + " ) when callback == null" );
             return;
@@ -120,7 +469,17 @@ class SubscriptionManager extends BluetoothGattCallback {
     }
 
     @Override
-    public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+    public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onConnectionStateChange( gatt, status, newState );
+                }
+            } );
+            return;
+        }
 
         final State state = getState( );
         Log.d( TAG, "onConnectionStateChange( .., " + status + ", " + newState + " ): " + state );
@@ -128,17 +487,32 @@ class SubscriptionManager extends BluetoothGattCallback {
             case DISCONNECTED:
                 if (status == BluetoothGatt.GATT_SUCCESS){
                     if (newState == BluetoothProfile.STATE_CONNECTED){
-                        dispatcher.dispatch( new Runnable( ) {
+                        onConnected( gatt );
+
+                        // Pace the operations as well as we've learnt to for this peripheral
+                        operations.clear( );
+                        operations.setPacing( getPacing( ) );
+
+                        // Make room for longer writes (e.g. our name) before anything else
+                        payloadSize = DEFAULT_PAYLOAD_SIZE;
+                        operations.enqueue( "requestMtu", new GattOperationQueue.Operation( ) {
+                            @Override
+                            public boolean start() {
+                                return gatt.requestMtu( REQUESTED_MTU );
+                            }
+                        } );
+                        operations.enqueue( "discoverServices", DISCOVERY_TIMEOUT, new GattOperationQueue.Operation( ) {
                             @Override
-                            public void run() {
+                            public boolean start() {
                                 if (gatt.discoverServices( )) {
                                     setState( State.CONNECTED );
-                                }else{
-                                    // Failed to discover services
-                                    onConnectionError( R.string.error_subscription_1);
+                                    return true;
                                 }
+                                // Failed to discover services
+                                onConnectionError( R.string.error_subscription_1);
+                                return false;
                             }
-                        }, this.delay );
+                        } );
                     }
                 }else{
                     onConnectionError( R.string.error_subscription_2, status );
@@ -158,18 +532,112 @@ class SubscriptionManager extends BluetoothGattCallback {
         }
     }
 
+    private void onConnected(BluetoothGatt gatt) {
+
+        txPhy = rxPhy = 0;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O){
+            return;
+        }
+
+        // The link starts out on the 1M PHY; ask to move it to the one we prefer, and otherwise
+        // just find out which one it's on
+        final int phy = preferredPhy;
+        if (phy == BluetoothDevice.PHY_LE_1M){
+            gatt.readPhy( );
+        }else{
+            final int mask = getPhyMask( );
+            gatt.setPreferredPhy(
+                mask,
+                mask,
+                (phy == BluetoothDevice.PHY_LE_CODED)
+                    ? BluetoothDevice.PHY_OPTION_S8
+                    : BluetoothDevice.PHY_OPTION_NO_PREFERRED
+            );
+        }
+    }
+
+    // N.B. The PHY callbacks only come from O on
+    @Override
+    public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onPhyUpdate( gatt, txPhy, rxPhy, status );
+                }
+            } );
+            return;
+        }
+
+        Log.d( TAG, "onPhyUpdate( .., " + txPhy + ", " + rxPhy + ", " + status + " )" );
+        if (status == BluetoothGatt.GATT_SUCCESS){
+            onPhy( txPhy, rxPhy );
+        }else{
+            // The peripheral (or the stack) wouldn't have it; find out where we've been left
+            Log.w( TAG, "Failed to update PHY: " + status );
+            gatt.readPhy( );
+        }
+    }
+
+    @Override
+    public void onPhyRead(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onPhyRead( gatt, txPhy, rxPhy, status );
+                }
+            } );
+            return;
+        }
+
+        Log.d( TAG, "onPhyRead( .., " + txPhy + ", " + rxPhy + ", " + status + " )" );
+        if (status == BluetoothGatt.GATT_SUCCESS){
+            onPhy( txPhy, rxPhy );
+        }
+    }
+
+    private void onPhy(int txPhy, int rxPhy) {
+
+        if (txPhy == this.txPhy && rxPhy == this.rxPhy){
+            return;
+        }
+        Log.i( TAG, "Using PHY " + txPhy + "/" + rxPhy + " (tx/rx), preferring " + preferredPhy );
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        final LinkMetrics metrics = this.metrics;
+        if (metrics != null){
+            metrics.onPhy( txPhy, rxPhy );
+        }
+    }
+
     @Override
-    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onMtuChanged( gatt, mtu, status );
+                }
+            } );
+            return;
+        }
 
         Log.d( TAG, "onMtuChanged( .., " + mtu + ", " + status + " );" );
         if (status == BluetoothGatt.GATT_SUCCESS){
-            this.mtu = mtu;
+            this.payloadSize = Math.max( mtu - ATT_HEADER_SIZE, DEFAULT_PAYLOAD_SIZE );
         }
-        super.onMtuChanged( gatt, mtu, status );
+
+        // The peripheral may start an exchange of its own, so only complete ours
+        operations.onComplete( "requestMtu", status );
     }
 
-    private synchronized void onError(int string, int status) {
-        
+    private void onError(int string, int status) {
+
+        final Callback callback = this.callback;
         if (callback == null){
             Log.i( TAG, "onError( " + string + ", " + status + " ) when callback == null" );
             return;
@@ -178,15 +646,39 @@ class SubscriptionManager extends BluetoothGattCallback {
     }
     
     @Override
-    public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+    public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onServicesDiscovered( gatt, status );
+                }
+            } );
+            return;
+        }
 
+        operations.onComplete( status );
         backlog.clear( );
+        unverified.clear( );
         subscribed.clear( );
+        characteristics.clear( );
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                // Subscribe for notifications from the service's characteristics, one at a time
-                backlog.addAll( uuids );
-                subscribeForNotifications( gatt );
+                this.gatt = gatt;
+
+                // Count lost/replayed frames afresh for the new link
+                sequenceTracker.restart( );
+                clockSync.reset( );
+
+                // Find out what the peripheral can do before subscribing,
+                // unless it has already told us
+                capabilities = Capabilities.LEGACY;
+                if (advertisement == null){
+                    negotiate( gatt );
+                }else{
+                    writeCapabilities( gatt, advertisement.getCapabilities( ).negotiate( ) );
+                }
                 break;
 
             default:
@@ -199,8 +691,320 @@ class SubscriptionManager extends BluetoothGattCallback {
         }
     }
 
-    private synchronized void onError(int string) {
-        
+    private BluetoothGattCharacteristic getCharacteristic(BluetoothGatt gatt, UUID uuid) {
+
+        // Look it up once per discovery, since the lookup iterates (and so allocates)
+        BluetoothGattCharacteristic characteristic = characteristics.get( uuid );
+        if (characteristic != null){
+            return characteristic;
+        }
+        BluetoothGattService service = gatt.getService( RemoteControl.SERVICE_UUID );
+        characteristic = (service == null)
+            ? null
+            : service.getCharacteristic( uuid );
+        if (characteristic != null){
+            characteristics.put( uuid, characteristic );
+        }
+        return characteristic;
+    }
+
+    private boolean doNegotiate(BluetoothGatt gatt) {
+
+        // Peripherals which pre-date capabilities get the legacy protocol
+        BluetoothGattCharacteristic characteristic = getCharacteristic(
+            gatt,
+            RemoteControl.CAPABILITIES_UUID
+        );
+        if (characteristic == null){
+            Log.d( TAG, "No capabilities characteristic." );
+            onNegotiated( gatt );
+            return false;
+        }
+        setState( State.NEGOTIATING );
+        if (!gatt.readCharacteristic( characteristic )){
+            Log.w( TAG, "Failed to read capabilities?" );
+            onNegotiated( gatt );
+            return false;
+        }
+        return true;
+    }
+
+    private void negotiate(final BluetoothGatt gatt) {
+
+        operations.enqueue( "readCapabilities", new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                return doNegotiate( gatt );
+            }
+        } );
+    }
+
+    private boolean doWriteCapabilities(BluetoothGatt gatt, Capabilities capabilities) {
+
+        BluetoothGattCharacteristic characteristic = getCharacteristic(
+            gatt,
+            RemoteControl.CAPABILITIES_UUID
+        );
+        if (characteristic == null){
+            onNegotiated( gatt );
+            return false;
+        }
+        characteristic.setWriteType( BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT );
+        if (characteristic.setValue( capabilities.toByteArray( ) ) && gatt.writeCharacteristic( characteristic )){
+            this.capabilities = capabilities;
+            return true;
+        }
+        Log.w( TAG, "Failed to write out capabilities?" );
+        onNegotiated( gatt );
+        return false;
+    }
+
+    private void writeCapabilities(final BluetoothGatt gatt, final Capabilities capabilities) {
+
+        operations.enqueue( "writeCapabilities", new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                return doWriteCapabilities( gatt, capabilities );
+            }
+        } );
+    }
+
+    private void onNegotiated(BluetoothGatt gatt) {
+
+        Log.i( TAG, "Using capabilities: " + capabilities );
+
+        // Pick up where we left off with a peripheral which still has us subscribed, once it's
+        // confirmed as much
+        resumed = resumeSubscription( gatt );
+        if (resumed){
+            unverified.clear( );
+            unverified.addAll( uuids );
+            verifySubscriptions( gatt );
+            return;
+        }
+
+        // Subscribe for notifications from the service's characteristics, one at a time
+        subscribed.clear( );
+        backlog.addAll( uuids );
+        subscribeForNotifications( gatt );
+    }
+
+    /**
+     * Reads back the client configuration of each resumed subscription, one at a time, before
+     * going on as subscribed; the cache only says what the peripheral had when we last wrote it,
+     * and it may since have been reset, or have forgotten us.
+     */
+    private void verifySubscriptions(final BluetoothGatt gatt) {
+
+        // Look for an early out
+        if (unverified.isEmpty( )){
+            subscribeForNotifications( gatt );
+            return;
+        }
+
+        final UUID uuid = unverified.pop( );
+        operations.enqueue( "readSubscription", new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                final BluetoothGattCharacteristic characteristic = getCharacteristic( gatt, uuid );
+                final BluetoothGattDescriptor descriptor = (characteristic == null)
+                    ? null
+                    : characteristic.getDescriptor( CLIENT_CONFIG_UUID );
+                if (descriptor == null || !gatt.readDescriptor( descriptor )){
+                    Log.w( TAG, "Failed to read the client configuration of " + uuid );
+                    onSubscriptionVerified( gatt, false );
+                    return false;
+                }
+                return true;
+            }
+        } );
+    }
+
+    /**
+     * Goes on to verify the next resumed subscription, if the last was confirmed; otherwise,
+     * abandons the resumption, and subscribes afresh.
+     */
+    private void onSubscriptionVerified(BluetoothGatt gatt, boolean enabled) {
+
+        if (enabled){
+            verifySubscriptions( gatt );
+            return;
+        }
+        Log.i( TAG, "Peripheral no longer has us subscribed; subscribing afresh.." );
+        forgetSubscriptions( );
+        resumed = false;
+        unverified.clear( );
+        subscribed.clear( );
+        backlog.clear( );
+        backlog.addAll( uuids );
+        subscribeForNotifications( gatt );
+    }
+
+    /**
+     * Resumes the subscription made on an earlier connection, if the peripheral is bonded (and
+     * so keeps its client configuration between connections) and its database hasn't changed
+     * since; that is, only enables the notifications locally, rather than rewriting the client
+     * configuration of each characteristic.
+     *
+     * @return true if resumed; false if we need to subscribe afresh.
+     */
+    private boolean resumeSubscription(BluetoothGatt gatt) {
+
+        // Look for an early out
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (!known || peripheralCache == null || address == null){
+            return false;
+        }
+        if (gatt.getDevice( ).getBondState( ) != BluetoothDevice.BOND_BONDED){
+            return false;
+        }
+        final String cached = peripheralCache.getSubscriptions( address );
+        if (cached == null || !cached.equals( encodeSubscriptions( uuids ) )){
+            return false;
+        }
+
+        for (UUID uuid : uuids){
+            final BluetoothGattCharacteristic characteristic = getCharacteristic( gatt, uuid );
+            if (characteristic == null || !gatt.setCharacteristicNotification( characteristic, true )){
+                Log.w( TAG, "Failed to resume subscription to " + uuid );
+                forgetSubscriptions( );
+                return false;
+            }
+            subscribed.push( uuid );
+        }
+        Log.i( TAG, "Resumed subscription to " + cached );
+        return true;
+    }
+
+    private static String encodeSubscriptions(Iterable<UUID> uuids) {
+
+        final StringBuilder builder = new StringBuilder( );
+        for (UUID uuid : uuids){
+            if (builder.length( ) > 0){
+                builder.append( ',' );
+            }
+            builder.append( uuid );
+        }
+        return builder.toString( );
+    }
+
+    private void rememberSubscriptions(BluetoothGatt gatt) {
+
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (resumed || peripheralCache == null || address == null){
+            return;
+        }
+        if (gatt.getDevice( ).getBondState( ) == BluetoothDevice.BOND_BONDED && subscribed.containsAll( uuids )){
+            peripheralCache.putSubscriptions( address, encodeSubscriptions( uuids ) );
+        }
+    }
+
+    /**
+     * Forgets any subscription to the peripheral, so that the next is made afresh.
+     */
+    private void forgetSubscriptions() {
+
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (peripheralCache != null && address != null){
+            peripheralCache.removeSubscriptions( address );
+        }
+    }
+
+    /**
+     * Called with the status of each GATT operation; the handles we hold are no good if the
+     * peripheral says they're invalid.
+     */
+    private void checkHandles(int status) {
+
+        if (status == BluetoothGatt.GATT_INVALID_HANDLE){
+            Log.w( TAG, "Invalid handle; forgetting the subscription." );
+            forgetSubscriptions( );
+        }
+    }
+
+    /**
+     * Called (from S on) when the peripheral's database has changed, in which case we
+     * discover its services and subscribe afresh. N.B. Not an override, as it's not in the SDK
+     * we build against.
+     */
+    public void onServiceChanged(final BluetoothGatt gatt) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onServiceChanged( gatt );
+                }
+            } );
+            return;
+        }
+
+        Log.i( TAG, "Services changed; rediscovering.." );
+        forgetSubscriptions( );
+        known = false;
+        if (getState( ) == State.UNSUBSCRIBING || getState( ) == State.UNSUBSCRIBED){
+            return;
+        }
+        connectionPriority.stop( );
+        operations.clear( );
+        operations.enqueue( "discoverServices", DISCOVERY_TIMEOUT, new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                if (gatt.discoverServices( )) {
+                    setState( State.CONNECTED );
+                    return true;
+                }
+                onConnectionError( R.string.error_subscription_1);
+                return false;
+            }
+        } );
+    }
+
+    @Override
+    public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onCharacteristicRead( gatt, characteristic, status );
+                }
+            } );
+            return;
+        }
+
+        checkHandles( status );
+        final UUID uuid = characteristic.getUuid( );
+        if (RemoteControl.NAME_UUID.equals( uuid )){
+            if (operations.onComplete( "readName", status )){
+                onDeviceNameRead( gatt, (status == BluetoothGatt.GATT_SUCCESS) ? characteristic.getValue( ) : null );
+            }
+            return;
+        }
+        if (!RemoteControl.CAPABILITIES_UUID.equals( uuid )){
+            Log.w( TAG, "Read unexpected characteristic: " + uuid );
+            return;
+        }
+        if (!operations.onComplete( "readCapabilities", status )){
+            return;
+        }
+        final Capabilities theirs = (status == BluetoothGatt.GATT_SUCCESS)
+            ? Capabilities.parse( characteristic.getValue( ) )
+            : null;
+        if (theirs == null){
+            Log.w( TAG, "Failed to read capabilities: " + status );
+            onNegotiated( gatt );
+            return;
+        }
+        Log.d( TAG, "Peripheral capabilities: " + theirs );
+
+        // Tell the peripheral which of its features we'll be using
+        writeCapabilities( gatt, theirs.negotiate( ) );
+    }
+
+    private void onError(int string) {
+
+        final Callback callback = this.callback;
         if (callback == null){
             Log.i( TAG, "onError( " + string + " ) when callback == null" );
             return;
@@ -242,8 +1046,7 @@ class SubscriptionManager extends BluetoothGattCallback {
             return false;
         }
 
-        final UUID configDescriptor = UUID.fromString( "00002902-0000-1000-8000-00805f9b34fb" );
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor( configDescriptor );
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor( CLIENT_CONFIG_UUID );
         descriptor.setValue( enable
                 ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
                 : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE );
@@ -257,17 +1060,17 @@ class SubscriptionManager extends BluetoothGattCallback {
         return true;
     }
 
-    private void doSendDeviceName(BluetoothGatt gatt) {
+    private boolean doSendDeviceName(BluetoothGatt gatt) {
 
         // Look for an early out
         if (!deviceName.hasMore( )){
-            return;
+            return false;
         }
         BluetoothGattService service = gatt.getService( RemoteControl.SERVICE_UUID );
         if (service == null){
             Log.w( TAG, "W.A.R. service not found?" );
             onError( R.string.error_send_devicename_failed );
-            return;
+            return false;
         }
         for (BluetoothGattCharacteristic c : service.getCharacteristics( )){
             Log.d( TAG, "Found: " + c.getUuid( ) );
@@ -280,7 +1083,7 @@ class SubscriptionManager extends BluetoothGattCallback {
         if (characteristic == null){
             Log.w( TAG, "Failed to retrieve the name characteristic." );
             onError( R.string.error_send_devicename_failed );
-            return;
+            return false;
         }
         if ((characteristic.getProperties( ) & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE){
             Log.i( TAG, "No write response expected?" );
@@ -288,7 +1091,7 @@ class SubscriptionManager extends BluetoothGattCallback {
         characteristic.setWriteType( BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT );
 
         // Get the next chunk and write out
-        byte[] chunk = deviceName.getNextChunk( mtu );
+        byte[] chunk = deviceName.getNextChunk( payloadSize );
         boolean result = characteristic.setValue( chunk );
         if (result){
             result = gatt.writeCharacteristic( characteristic );
@@ -299,23 +1102,163 @@ class SubscriptionManager extends BluetoothGattCallback {
             Log.w( TAG, "Failed to set value of name characteristic." );
         }
         if (!result){
+            // Presumably the stack is busy with something of its own, so try again shortly
             deviceName.rewind( chunk.length );
-            onError( R.string.error_send_devicename_failed );
+            if (nameRetries++ < MAX_RETRIES){
+                dispatcher.dispatch( retryName, this.delay );
+            }else{
+                onError( R.string.error_send_devicename_failed );
+            }
         }
+        return result;
     }
 
     private void sendDeviceName(final BluetoothGatt gatt) {
 
-        dispatcher.dispatch( new Runnable( ) {
+        operations.enqueue( "writeName", new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                return doSendDeviceName( gatt );
+            }
+        } );
+    }
+
+    private void resendDeviceName(BluetoothGatt gatt) {
+
+        deviceName.reset( );
+        nameRetries = 0;
+        sendDeviceName( gatt );
+    }
+
+    /**
+     * Checks that the peripheral still has the name we last sent it, if it lets us read it
+     * back; otherwise, takes its word for it.
+     */
+    private void verifyDeviceName(final BluetoothGatt gatt) {
+
+        operations.enqueue( "readName", new GattOperationQueue.Operation( ) {
             @Override
-            public void run() {
-                doSendDeviceName( gatt );
+            public boolean start() {
+                final BluetoothGattCharacteristic characteristic = getCharacteristic(
+                    gatt,
+                    RemoteControl.NAME_UUID
+                );
+                if (characteristic != null
+                    && (characteristic.getProperties( ) & BluetoothGattCharacteristic.PROPERTY_READ) == BluetoothGattCharacteristic.PROPERTY_READ
+                    && gatt.readCharacteristic( characteristic )){
+                    return true;
+                }
+                onDeviceNameSent( gatt, false );
+                return false;
             }
-        }, this.delay );
+        } );
+    }
+
+    private void onDeviceNameRead(BluetoothGatt gatt, byte[] value) {
+
+        // A peripheral which has forgotten our name (e.g. since it was reset) reads back empty
+        if (value != null && value.length == 0){
+            Log.i( TAG, "Peripheral has lost our name; resending.." );
+            forgetNameDigest( );
+            nameSkipped = false;
+            resendDeviceName( gatt );
+            return;
+        }
+        onDeviceNameSent( gatt, false );
+    }
+
+    /**
+     * Forgets that the peripheral has our name, so that it's sent afresh next time.
+     */
+    private void forgetNameDigest() {
+
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (peripheralCache != null && address != null){
+            peripheralCache.removeNameDigest( address );
+        }
+    }
+
+    private void onDeviceNameSent(BluetoothGatt gatt, boolean written) {
+
+        // Remember that the peripheral has our name, so as not to send it again next time
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (written && peripheralCache != null && address != null){
+            peripheralCache.putNameDigest( address, deviceNameDigest );
+        }
+
+        // Once the name has been sent, synchronise our clocks (if we can)
+        if (capabilities.has( Capabilities.FEATURE_TIMESTAMP )){
+            synchroniseClock( gatt );
+        }
     }
 
-    private synchronized void onSubscriptionChanged(boolean subscribed) {
+    private boolean doSendClock(BluetoothGatt gatt) {
+
+        BluetoothGattService service = gatt.getService( RemoteControl.SERVICE_UUID );
+        if (service == null){
+            Log.w( TAG, "W.A.R. service not found?" );
+            return false;
+        }
 
+        // Older peripherals don't timestamp their notifications, so there's nothing to do
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(
+            RemoteControl.CLOCK_UUID
+        );
+        if (characteristic == null){
+            Log.d( TAG, "No clock characteristic." );
+            return false;
+        }
+        characteristic.setWriteType( BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT );
+
+        // Stamp the request as late as we can, so as not to count our own overhead
+        final byte[] request = clockSync.getRequest( SystemClock.elapsedRealtime( ) );
+        if (!characteristic.setValue( request ) || !gatt.writeCharacteristic( characteristic )){
+            // Presumably the stack is busy with something of its own, so try again shortly
+            if (clockRetries++ < MAX_RETRIES){
+                dispatcher.dispatch( retryClock, this.delay );
+            }else{
+                Log.w( TAG, "Failed to write out clock?" );
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void sendClock(final BluetoothGatt gatt) {
+
+        operations.enqueue( "writeClock", new GattOperationQueue.Operation( ) {
+            @Override
+            public boolean start() {
+                return doSendClock( gatt );
+            }
+        } );
+    }
+
+    private void synchroniseClock(BluetoothGatt gatt) {
+
+        clockRetries = 0;
+        clockSync.restart( );
+        sendClock( gatt );
+    }
+
+    private void onClock(BluetoothGatt gatt, long now) {
+
+        // Without the peripheral's time of the echo, there's nothing to synchronise to
+        if (!frame.hasTimestamp( )){
+            Log.w( TAG, "Received clock without timestamp" );
+            return;
+        }
+        clockSync.onResponse( frame.getClock( ), frame.getTimestamp( ), now );
+        if (clockSync.hasMore( )){
+            sendClock( gatt );
+        }else if (clockSync.isSynchronised( )){
+            Log.i( TAG, "Synchronised clock with round trip of " + clockSync.getRoundTrip( ) + "ms" );
+        }
+    }
+
+    private void onSubscriptionChanged(boolean subscribed) {
+
+        final Callback callback = this.callback;
         if (callback == null){
             Log.i( TAG, "onSubscriptionChanged( " + subscribed + " ) when callback == null" );
             return;
@@ -328,81 +1271,318 @@ class SubscriptionManager extends BluetoothGattCallback {
         // Look for an early out
         if (backlog.isEmpty( )){
             setState( State.SUBSCRIBED );
+            onSubscribed( );
+            rememberSubscriptions( gatt );
+
+            // Keep the latency down whilst the peripheral is in use
+            connectionPriority.setLatencyTarget( latencyTarget );
+            connectionPriority.start( gatt );
 
             // Notify the service
             onSubscriptionChanged( true );
 
             // Next, try and send our friendly name to the other side
-            // For display purposes
-            deviceName.reset( );
-            sendDeviceName( gatt );
+            // For display purposes; unless it already has it
+            final PeripheralCache peripheralCache = this.peripheralCache;
+            nameSkipped = known && peripheralCache != null && peripheralCache.hasNameDigest( address, deviceNameDigest );
+            if (nameSkipped){
+                Log.d( TAG, "Peripheral already has our name." );
+                verifyDeviceName( gatt );
+                return;
+            }
+            resendDeviceName( gatt );
             return;
         }
         setState( State.SUBSCRIBING );
 
         final UUID uuid = backlog.pop( );
-        dispatcher.dispatch( new Runnable( ) {
+        operations.enqueue( "subscribe", new GattOperationQueue.Operation( ) {
             @Override
-            public void run() {
+            public boolean start() {
                 // Toggle the subscription for the next characteristic 'on'
-                toggleSubscription( gatt, uuid, true );
+                return toggleSubscription( gatt, uuid, true );
             }
-        }, this.delay );
+        } );
+    }
+
+    private GattPacing getPacing() {
+
+        // Start from what we learnt last time, if anything
+        final GattPacing pacing = new GattPacing( this.delay );
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (peripheralCache != null && address != null){
+            pacing.decode( peripheralCache.getPacing( address ) );
+        }
+        Log.d( TAG, "Using " + pacing );
+        return pacing;
+    }
+
+    private void putPacing() {
+
+        final PeripheralCache peripheralCache = this.peripheralCache;
+        if (peripheralCache != null && address != null){
+            peripheralCache.putPacing( address, operations.getPacing( ).encode( ) );
+        }
+    }
+
+    private void onSubscribed() {
+
+        final long elapsed = SystemClock.elapsedRealtime( ) - connectStarted;
+        final GattPacing pacing = operations.getPacing( );
+        final long guard = pacing.getMaxGuard( );
+        Log.i( TAG, "Subscribed in " + elapsed + "ms" + ((guard > 0L) ? " (guarded by up to " + guard + "ms)" : "") );
+        final LinkMetrics metrics = this.metrics;
+        if (metrics != null){
+            metrics.onSubscribed( elapsed, guard );
+        }
+
+        // Remember how it went, for next time
+        pacing.onSubscribed( );
+        putPacing( );
+    }
+
+    @Override
+    public void onTimeout(String operation) {
+
+        // Give the peripheral more room next time
+        putPacing( );
+
+        // Carry on unsubscribing regardless
+        if (getState( ) == State.UNSUBSCRIBING){
+            doUnsubscribeFromNotifications( gatt, true );
+            return;
+        }
+
+        // A resumed subscription which can't be confirmed is made afresh
+        if ("readSubscription".equals( operation )){
+            onSubscriptionVerified( gatt, false );
+            return;
+        }
+
+        // Once subscribed, the writes which follow are extras the link can do without; otherwise,
+        // start over
+        if (getState( ) == State.SUBSCRIBED){
+            onOptionalTimeout( operation );
+            return;
+        }
+        onConnectionError( R.string.error_gatt_timeout, operation );
+    }
+
+    private void onOptionalTimeout(String operation) {
+
+        switch (operation) {
+            case "readName":
+            case "writeName":
+                // Go without, as if the peripheral had refused it
+                onDeviceNameSent( gatt, false );
+                break;
+
+            case "writeClock":
+                Log.w( TAG, "Abandoned clock synchronisation; events will go untimed" );
+                break;
+
+            case "writeNowPlaying":
+                // Send the last chunk again, after a pause, unless it's already been tried enough
+                retryNowPlaying( nowPlayingChunkSize );
+                break;
+
+            default:
+                // Acknowledgements and state are superseded by the next
+                break;
+        }
+    }
+
+    /**
+     * Unsubscribes from notifications, one characteristic at a time; if forced, without waiting
+     * for the peripheral to confirm each in turn.
+     */
+    void unsubscribeFromNotifications(BluetoothGatt gatt, boolean force) {
+        handler.obtainMessage( UNSUBSCRIBE_MSG, (force ? 1 : 0), 0, gatt ).sendToTarget( );
     }
 
-    void unsubscribeFromNotifications(final BluetoothGatt gatt, final boolean force) {
+    private void doUnsubscribeFromNotifications(final BluetoothGatt gatt, final boolean force) {
 
         if (gatt == null){
             Log.w( TAG, "gatt == null" );
             return;
         }
+        connectionPriority.stop( );
         if (subscribed.isEmpty( )){
             setState( State.UNSUBSCRIBED );
+            Log.i( TAG, "Unsubscribed; " + sequenceTracker );
+            final InputFilter inputFilter = this.inputFilter;
+            if (inputFilter != null){
+                Log.i( TAG, "Input filtered; " + inputFilter );
+                final LinkMetrics metrics = this.metrics;
+                if (metrics != null){
+                    metrics.onFiltered(
+                        inputFilter.getPassed( ),
+                        inputFilter.getDebounced( ),
+                        inputFilter.getDropped( InputFilter.CLASS_TRANSPORT )
+                            + inputFilter.getDropped( InputFilter.CLASS_VOLUME )
+                            + inputFilter.getDropped( InputFilter.CLASS_STOP )
+                    );
+                }
+            }
 
             onSubscriptionChanged( false );
             return;
         }
         setState( State.UNSUBSCRIBING );
 
-        // Toggle the subscription for the next characteristic 'off'
+        // Toggle the subscription for the next characteristic 'off'; if forced, without
+        // waiting for anything else in flight
         final UUID uuid = subscribed.pop( );
-        final Runnable runnable = new Runnable() {
+        // Once the peripheral may have had its client configuration rewritten, we can't
+        // resume the subscription next time
+        if (force){
+            operations.clear( );
+            Log.d( TAG, "Unsubscribing from " + uuid.toString( ) );
+            if (toggleSubscription( gatt, uuid, false )){
+                forgetSubscriptions( );
+            }
+            doUnsubscribeFromNotifications( gatt, true );
+            return;
+        }
+        operations.enqueue( "unsubscribe", new GattOperationQueue.Operation( ) {
             @Override
-            public void run() {
+            public boolean start() {
                 Log.d( TAG, "Unsubscribing from " + uuid.toString( ) );
-                if (!toggleSubscription( gatt, uuid, false ) || force){
-                    unsubscribeFromNotifications( gatt, force );
+                if (!toggleSubscription( gatt, uuid, false )){
+                    doUnsubscribeFromNotifications( gatt, false );
+                    return false;
                 }
+                forgetSubscriptions( );
+                return true;
             }
-        };
-        if (force){
-            runnable.run( );
-        }else{
-            dispatcher.dispatch( runnable, delay );
-        }
+        } );
     }
 
     @Override
-    public void onCharacteristicWrite(final BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+    public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
 
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onCharacteristicWrite( gatt, characteristic, status );
+                }
+            } );
+            return;
+        }
+
+        // Only complete the operation in flight if this is its callback (and not, say, a late one
+        // for a write which timed out); writes without a response (i.e. acknowledgements and
+        // state) are called back too, once the stack has handed them over
         final UUID uuid = characteristic.getUuid( );
-        switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-                if (RemoteControl.NAME_UUID.equals( uuid )) {
-                    sendDeviceName( gatt );
+        final boolean ok = (status == BluetoothGatt.GATT_SUCCESS);
+        if (!ok){
+            Log.w( TAG, "Failed to write " + uuid + ": " + status );
+            checkHandles( status );
+        }
+        if (RemoteControl.CAPABILITIES_UUID.equals( uuid )){
+            // Whatever the outcome, go on to subscribe; if the peripheral didn't take our
+            // capabilities, then it's not expecting any of them
+            if (!operations.onComplete( "writeCapabilities", status )){
+                return;
+            }
+            if (!ok){
+                capabilities = Capabilities.LEGACY;
+            }
+            onNegotiated( gatt );
+            return;
+        }
+        if (RemoteControl.NOW_PLAYING_UUID.equals( uuid )){
+            // Send the next chunk (or the last one again, after a pause); should the peripheral
+            // refuse it, there's no point in trying again
+            if (!operations.onComplete( "writeNowPlaying", status )){
+                return;
+            }
+            if (ok){
+                nowPlayingRetries = 0;
+                sendNowPlaying.run( );
+            }else if (GattPacing.isRejection( status )){
+                abandonNowPlaying( );
+            }else{
+                retryNowPlaying( nowPlayingChunkSize );
+            }
+            return;
+        }
+        if (RemoteControl.NAME_UUID.equals( uuid )){
+            // Send the next chunk, if any; should the peripheral refuse it, go without
+            if (!operations.onComplete( "writeName", status )){
+                return;
+            }
+            if (!ok){
+                onDeviceNameSent( gatt, false );
+            }else if (deviceName.hasMore( )){
+                nameRetries = 0;
+                sendDeviceName( gatt );
+            }else{
+                onDeviceNameSent( gatt, true );
+            }
+            return;
+        }
+        if (RemoteControl.CLOCK_UUID.equals( uuid )){
+            operations.onComplete( "writeClock", status );
+            return;
+        }
+        if (RemoteControl.ACK_UUID.equals( uuid )){
+            operations.onComplete( "writeAck", status );
+            return;
+        }
+        if (RemoteControl.STATE_UUID.equals( uuid )){
+            operations.onComplete( "writeState", status );
+            return;
+        }
+        Log.w( TAG, "Wrote unexpected characteristic: " + uuid );
+    }
+
+    @Override
+    public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onDescriptorRead( gatt, descriptor, status );
                 }
-                break;
+            } );
+            return;
+        }
 
-            default:
-                Log.w( TAG, "Failed to write " + uuid );
-                break;
+        checkHandles( status );
+        if (!operations.onComplete( "readSubscription", status )){
+            return;
         }
+
+        // Notifications are on if the lowest bit of the configuration is set
+        final byte[] value = descriptor.getValue( );
+        final boolean enabled = (status == BluetoothGatt.GATT_SUCCESS)
+            && value != null && value.length > 0
+            && (value[0] & 0x01) != 0;
+        if (!enabled){
+            Log.w( TAG, "Client configuration of " + descriptor.getCharacteristic( ).getUuid( ) + " is off (" + status + ")" );
+        }
+        onSubscriptionVerified( gatt, enabled );
     }
 
     @Override
-    public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+
+        if (!isOnThread( )){
+            handler.post( new Runnable( ) {
+                @Override
+                public void run() {
+                    onDescriptorWrite( gatt, descriptor, status );
+                }
+            } );
+            return;
+        }
 
         Log.d( TAG, "onDescriptorWrite( " + descriptor.getCharacteristic( ).getUuid( ) + " )" );
+        operations.onComplete( status );
+        checkHandles( status );
         if (status == BluetoothGatt.GATT_SUCCESS){
             UUID uuid = descriptor.getCharacteristic( ).getUuid( );
             if (uuids.contains( uuid )){
@@ -428,7 +1608,7 @@ class SubscriptionManager extends BluetoothGattCallback {
                 break;
 
             case UNSUBSCRIBING:
-                unsubscribeFromNotifications( gatt, false );
+                doUnsubscribeFromNotifications( gatt, false );
                 break;
 
             default:
@@ -437,50 +1617,366 @@ class SubscriptionManager extends BluetoothGattCallback {
         }
     }
 
-    private synchronized void onNotification(final int value) {
+    private void onNotification(final NotificationFrame frame, long now) {
 
+        final Callback callback = this.callback;
         if (callback == null){
             return;
         }
-        callback.onNotification( value );
+        final LinkMetrics metrics = this.metrics;
+        final InputFilter inputFilter = this.inputFilter;
+
+        // Drop frames we've already seen, and resync if we missed any; we don't try and recover
+        // what was lost, since replaying stale volume steps, etc. would be worse than useless.
+        // Sequence numbers only count for anything if the peripheral agreed to keep them
+        final boolean sequenced = frame.hasSequence( ) && capabilities.has( Capabilities.FEATURE_SEQUENCE );
+        if (sequenced){
+            final int lost = sequenceTracker.track( frame.getSequence( ) );
+            if (lost < 0){
+                Log.d( TAG, "Dropping duplicate frame: " + frame.getSequence( ) );
+                return;
+            }
+            if (sequenceTracker.hasRestarted( )){
+                // Whatever the peripheral had of ours went with it
+                Log.i( TAG, "Peripheral started its sequence over at " + frame.getSequence( ) );
+                forgetNameDigest( );
+                if (nameSkipped && gatt != null && getState( ) == State.SUBSCRIBED){
+                    nameSkipped = false;
+                    resendDeviceName( gatt );
+                }
+            }
+            if (metrics != null){
+                metrics.onFrame( lost );
+            }
+            if (lost > 0){
+                Log.i( TAG, "Lost " + lost + " frame(s) before " + frame.getSequence( ) );
+                callback.onResync( lost );
+            }
+        }
+
+        // Feed the events on in the order in which they were sent; the frame went out with its
+        // last event, so that's the one which arrived now, and the others happened before it
+        final boolean timed = frame.hasTimestamp( )
+            && capabilities.has( Capabilities.FEATURE_TIMESTAMP )
+            && clockSync.isSynchronised( );
+        final int count = frame.getCount( );
+        final int last = (count > 0) ? frame.getOffset( count - 1 ) : 0;
+        for (int i = 0; i < count; i++){
+            final int value = frame.getEvent( i );
+            if (inputFilter != null && !inputFilter.accept( value, now - (last - frame.getOffset( i )) )){
+                continue;
+            }
+            callback.onNotification( value );
+            if (timed){
+                final int sent = frame.getTimestamp( ) + frame.getOffset( i );
+                final long latency = clockSync.getLatency( sent, now );
+                connectionPriority.onLatency( latency );
+                if (metrics != null){
+                    metrics.onEventLatency( value, latency );
+                }
+            }
+        }
+        if (count > 0){
+            connectionPriority.onActive( );
+        }
+
+        // Have the callback tell us when it's done with the frame, so we can acknowledge it
+        if (sequenced && count > 0 && capabilities.has( Capabilities.FEATURE_ACK )){
+            callback.onFrame( frame.getSequence( ) );
+        }
+    }
+
+    /**
+     * Acknowledges the given frame to the peripheral, along with the time (in ns) it took
+     * to process.
+     */
+    void acknowledge(int sequence, long processing) {
+        handler.sendMessage(
+            handler.obtainMessage( ACK_MSG, sequence, (int) Math.min( processing, Integer.MAX_VALUE ) )
+        );
+    }
+
+    private void onAcknowledge(int sequence, long processing) {
+
+        acknowledgements.add( sequence, processing );
+        if (acknowledgements.isFull( )){
+            flushAcknowledgements( );
+        }else if (!flushPending){
+            flushPending = true;
+            dispatcher.dispatch( flush, ACK_INTERVAL );
+        }
+    }
+
+    // Gives the outcomes of writeWithoutResponse( .. )
+    private static final int WRITTEN = 0;
+    private static final int WRITE_BUSY = 1;
+    private static final int WRITE_UNAVAILABLE = 2;
+
+    private int writeWithoutResponse(UUID uuid, byte[] value) {
+
+        final BluetoothGatt gatt = this.gatt;
+        if (gatt == null){
+            return WRITE_UNAVAILABLE;
+        }
+        final BluetoothGattCharacteristic characteristic = getCharacteristic( gatt, uuid );
+        if (characteristic == null){
+            Log.w( TAG, "Failed to retrieve characteristic: " + uuid );
+            return WRITE_UNAVAILABLE;
+        }
+
+        // Don't wait on a response: the point is to add as little traffic as possible
+        characteristic.setWriteType( BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE );
+        if (characteristic.setValue( value ) && gatt.writeCharacteristic( characteristic )){
+            return WRITTEN;
+        }
+
+        // Presumably another operation is in flight
+        return WRITE_BUSY;
+    }
+
+    /**
+     * Queues the acknowledgements to be written out, so as not to collide with any other
+     * operation; those made in the meantime go out with them.
+     */
+    private void flushAcknowledgements() {
+
+        if (acknowledgements.isEmpty( ) || ackQueued){
+            return;
+        }
+        ackQueued = true;
+        operations.enqueue( "writeAck", writeAck );
+    }
+
+    private boolean doFlushAcknowledgements() {
+
+        ackQueued = false;
+        if (acknowledgements.isEmpty( )){
+            return false;
+        }
+        switch (writeWithoutResponse( RemoteControl.ACK_UUID, acknowledgements.toByteArray( ) )) {
+            case WRITTEN:
+            {
+                final LinkMetrics metrics = this.metrics;
+                if (metrics != null){
+                    metrics.onAcknowledged( acknowledgements.getCount( ), acknowledgements.getProcessing( ) );
+                }
+                acknowledgements.clear( );
+            }
+            return true;
+
+            case WRITE_BUSY:
+                // Presumably the stack is busy with something of its own, so try again shortly
+                if (!flushPending){
+                    flushPending = true;
+                    dispatcher.dispatch( flush, ACK_INTERVAL );
+                }
+                return false;
+
+            default:
+                acknowledgements.clear( );
+                return false;
+        }
+    }
+
+    /**
+     * Writes out the given state of the local device to the peripheral, if it wants it; the
+     * write is queued behind any other operation, and takes the latest state when it starts.
+     */
+    void writeState(int volume, int maxVolume, int flags) {
+
+        final int packed = ((volume & 0xFF) << 16) | ((maxVolume & 0xFF) << 8) | (flags & 0xFF);
+        handler.obtainMessage( STATE_MSG, packed, 0 ).sendToTarget( );
+    }
+
+    private boolean doSendState() {
+
+        statePending = false;
+        if (!capabilities.has( Capabilities.FEATURE_STATE ) || getState( ) != State.SUBSCRIBED){
+            return false;
+        }
+        switch (writeWithoutResponse( RemoteControl.STATE_UUID, state )) {
+            case WRITTEN:
+                return true;
+
+            case WRITE_BUSY:
+                // Presumably the stack is busy with something of its own, so try again shortly
+                dispatcher.dispatch( sendState, this.delay );
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Queues the given update of what's playing to be sent to the peripheral, if it wants it.
+     */
+    void writeNowPlaying(byte[] delta) {
+        handler.obtainMessage( NOW_PLAYING_MSG, delta ).sendToTarget( );
+    }
+
+    private void onNowPlaying(byte[] delta) {
+
+        if (!capabilities.has( Capabilities.FEATURE_NOW_PLAYING ) || getState( ) != State.SUBSCRIBED){
+            return;
+        }
+        nowPlaying.add( delta );
+        if (!nowPlayingSending){
+            nowPlayingSending = true;
+            sendNowPlaying.run( );
+        }
+    }
+
+    /**
+     * Writes out the next chunk of what's playing, if any; the one after is queued from
+     * onCharacteristicWrite( .. ).
+     *
+     * @return true if a chunk was written out; false otherwise.
+     */
+    private boolean doSendNowPlaying() {
+
+        // Move onto the next update, if done with the current one
+        if (nowPlayingChunks == null || !nowPlayingChunks.hasMore( )){
+            final byte[] next = nowPlaying.poll( );
+            nowPlayingChunks = (next == null) ? null : new ChunkedBuffer( next );
+            if (nowPlayingChunks == null){
+                nowPlayingSending = false;
+                return false;
+            }
+        }
+
+        final BluetoothGatt gatt = this.gatt;
+        final BluetoothGattCharacteristic characteristic = (gatt == null)
+            ? null
+            : getCharacteristic( gatt, RemoteControl.NOW_PLAYING_UUID );
+        if (characteristic == null){
+            Log.w( TAG, "Failed to retrieve the now playing characteristic." );
+            abandonNowPlaying( );
+            return false;
+        }
+        characteristic.setWriteType( BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT );
+
+        final byte[] chunk = nowPlayingChunks.getNextChunk( payloadSize );
+        nowPlayingChunkSize = chunk.length;
+        if (!characteristic.setValue( chunk ) || !gatt.writeCharacteristic( characteristic )){
+            // Presumably the stack is busy with something of its own, so try again shortly
+            retryNowPlaying( chunk.length );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the last chunk of what's playing again, after a pause; or, once it's been tried
+     * enough, abandons it.
+     *
+     * @param length the length of the last chunk.
+     */
+    private void retryNowPlaying(int length) {
+
+        if (nowPlayingRetries++ >= MAX_RETRIES){
+            abandonNowPlaying( );
+            return;
+        }
+        if (nowPlayingChunks != null){
+            nowPlayingChunks.rewind( length );
+        }
+        dispatcher.dispatch( sendNowPlaying, this.delay );
+    }
+
+    /**
+     * Drops what's playing, sent or not; the peripheral no longer has what the next update
+     * would be relative to, so the reporter is told to send everything afresh.
+     */
+    private void abandonNowPlaying() {
+
+        Log.w( TAG, "Abandoned sending what's playing" );
+        handler.removeCallbacks( sendNowPlaying );
+        nowPlaying.clear( );
+        nowPlayingChunks = null;
+        nowPlayingSending = false;
+        nowPlayingRetries = 0;
+
+        final Callback callback = this.callback;
+        if (callback != null){
+            callback.onNowPlayingAbandoned( );
+        }
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
 
-        final UUID uuid = characteristic.getUuid( );
+        // Take the time, and a copy of the value, here on the binder thread; the characteristic
+        // will have moved on by the time they're relayed
+        final long now = SystemClock.elapsedRealtime( );
+        relay.relay( gatt, characteristic.getUuid( ), characteristic.getValue( ), now );
+    }
+
+    @Override
+    public void onRelayed(BluetoothGatt gatt, UUID uuid, byte[] value, int length, long now) {
+
+        // Note anything dropped for want of room; the gap in the sequence numbers (if any)
+        // resyncs the service as for any other frame lost in transit
+        final int overflows = relay.getOverflows( );
+        if (overflows != relayOverflows){
+            Log.w( TAG, "Dropped " + (overflows - relayOverflows) + " notification(s) on overflow" );
+            relayOverflows = overflows;
+        }
+
         if (uuid.equals( RemoteControl.NOTIFY_UUID )){
-            // Get the value
-            final Integer value = characteristic.getIntValue( BluetoothGattCharacteristic.FORMAT_UINT8, 0 );
-            //Log.d( TAG, "onCharacteristicChanged( " + uuid + ") with value: " + value );
-            onNotification( value.intValue( ) );
+            // Decode the value, which may be a single event or (if the peripheral agreed to
+            // send them) a frame of them
+            if (length > 1 && !capabilities.has( Capabilities.FEATURE_FRAMES )){
+                Log.w( TAG, "Received a frame without having agreed to frames" );
+                return;
+            }
+            if (frame.parse( value, length )){
+                if (frame.hasClock( )){
+                    onClock( gatt, now );
+                }
+                onNotification( frame, now );
+            }else{
+                Log.w( TAG, "Received malformed notification" );
+            }
         }else{
             Log.w( TAG, "Received notification for unknown characteristic: " + uuid );
         }
     }
 }
 
-class ChunkedUtf8StringBuffer {
+class ChunkedBuffer {
 
     private int offset = 0;
 
-    private final byte[] bytes;
+    protected final byte[] bytes;
 
-    ChunkedUtf8StringBuffer(String arg) {
-        bytes = arg.getBytes( StandardCharsets.UTF_8 );
+    // Gives the last chunk handed out, which is re-used for the next if it's the same size
+    private byte[] chunk = new byte[0];
+
+    ChunkedBuffer(byte[] bytes) {
+        this.bytes = bytes;
     }
 
     void reset() {
         this.offset = 0;
     }
 
+    /**
+     * @return the next chunk, of no more than the given size, with a header byte which flags
+     * whether it's the last; it's only good until the next call.
+     */
     byte[] getNextChunk(int mtu) {
 
         final int delta = bytes.length - offset;
-        final int prefix = (mtu > delta) ? 0x00000080 : 0;
-        final int size = Math.min( delta+1, mtu );
-        final int length = size-1;
-        byte[] chunk = new byte[size];
+        final int end = (delta < mtu)
+            ? bytes.length
+            : getBoundary( offset, offset + mtu - 1 );
+        final int length = end - offset;
+        final int prefix = (end == bytes.length) ? 0x00000080 : 0;
+        final int size = length + 1;
+        if (chunk.length != size){
+            chunk = new byte[size];
+        }
         chunk[0] = (byte) prefix;
         System.arraycopy( bytes, offset, chunk, 1, length );
 
@@ -489,6 +1985,14 @@ class ChunkedUtf8StringBuffer {
         return chunk;
     }
 
+    /**
+     * @return the index at which to end a chunk which runs from start up to (but excluding)
+     * end, at the latest; by default, end itself.
+     */
+    protected int getBoundary(int start, int end) {
+        return end;
+    }
+
     boolean hasMore() {
         return (offset < bytes.length);
     }
@@ -497,3 +2001,34 @@ class ChunkedUtf8StringBuffer {
         offset -= (size - 1);
     }
 }
+
+/**
+ * Chunks a string as UTF-8, without splitting any code point between chunks.
+ */
+class ChunkedUtf8StringBuffer extends ChunkedBuffer {
+
+    ChunkedUtf8StringBuffer(String arg) {
+        super( arg.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @Override
+    protected int getBoundary(int start, int end) {
+
+        // Back up over any continuation bytes, unless the chunk would be left empty
+        int boundary = end;
+        while (boundary > start && (bytes[boundary] & 0xC0) == 0x80){
+            boundary--;
+        }
+        return (boundary > start) ? boundary : end;
+    }
+
+    /**
+     * @return a digest of the string, by which to tell whether it has changed.
+     */
+    long getDigest() {
+
+        final CRC32 crc = new CRC32( );
+        crc.update( bytes, 0, bytes.length );
+        return crc.getValue( );
+    }
+}
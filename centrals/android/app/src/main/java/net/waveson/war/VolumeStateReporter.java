@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps the peripheral up-to-date with the volume and mute state of a stream, so that it can
+ * show it, and stop sending steps the stream can't take.
+ *
+ * Changes are picked up from an {@link AudioStateMirror}, rather than by polling. Bursts of them
+ * (e.g. whilst a volume key is held) are coalesced: the first change is sent straight away, and
+ * thereafter no more than one write goes out per {@link #INTERVAL}, giving the latest state.
+ *
+ * The state is written to {@link RemoteControl#STATE_UUID} as the stream's volume index, its
+ * maximum index and a set of flags, with {@link #FLAG_MUTED} if it's muted.
+ */
+class VolumeStateReporter implements AudioStateMirror.Listener {
+
+    // Gives the minimum interval (in ms) between writes
+    static final long INTERVAL = 100L;
+
+    static final int FLAG_MUTED = 0x00000001;
+
+    private final AudioStateMirror audioStateMirror;
+    private final Dispatcher dispatcher;
+
+    private SubscriptionManager subscriptionManager = null;
+
+    private boolean pending = false;
+    private long lastSent = 0L;
+    private final Runnable flush = new Runnable( ) {
+        @Override
+        public void run() {
+            pending = false;
+            report( );
+        }
+    };
+
+    VolumeStateReporter(AudioStateMirror audioStateMirror, Dispatcher dispatcher) {
+        this.audioStateMirror = audioStateMirror;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Starts reporting to the peripheral at the other end of the given subscription,
+     * beginning with the current state.
+     */
+    void start(SubscriptionManager subscriptionManager) {
+        this.subscriptionManager = subscriptionManager;
+        onAudioStateChanged( );
+    }
+
+    void stop() {
+        subscriptionManager = null;
+    }
+
+    @Override
+    public void onAudioStateChanged() {
+
+        // Look for an early out
+        if (pending || subscriptionManager == null){
+            return;
+        }
+        pending = true;
+
+        final long delay = (lastSent + INTERVAL) - SystemClock.uptimeMillis( );
+        if (delay > 0L){
+            dispatcher.dispatch( flush, delay );
+        }else{
+            dispatcher.dispatch( flush );
+        }
+    }
+
+    private void report() {
+
+        if (subscriptionManager == null){
+            return;
+        }
+        lastSent = SystemClock.uptimeMillis( );
+        subscriptionManager.writeState(
+            audioStateMirror.getVolume( ),
+            audioStateMirror.getMaxVolume( ),
+            (audioStateMirror.isMuted( ) ? FLAG_MUTED : 0)
+        );
+    }
+}
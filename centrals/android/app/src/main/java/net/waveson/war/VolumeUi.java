@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.PowerManager;
+
+import android.media.AudioManager;
+
+/**
+ * Decides whether a change to the volume should show the volume panel.
+ *
+ * Changes which follow one another within {@link #BURST_GAP} are a burst (e.g. whilst a key is
+ * held down), and only the first and last change in a burst show the panel; the last is only
+ * known once the gap has passed, so the panel is then shown again (as it stands). Nothing is
+ * shown whilst the screen is off.
+ */
+class VolumeUi {
+
+    // Gives the longest time (in ms) between two changes in the same burst
+    static final long BURST_GAP = 300L;
+
+    private final int streamType;
+    private final AudioManager audioManager;
+    private final PowerManager powerManager;
+    private final Handler handler;
+
+    // Gives the time of the last change
+    private long last = -BURST_GAP;
+
+    private final Runnable end = new Runnable( ) {
+        @Override
+        public void run() {
+            if (powerManager.isInteractive( )){
+                audioManager.adjustStreamVolume( streamType, AudioManager.ADJUST_SAME, AudioManager.FLAG_SHOW_UI );
+            }
+        }
+    };
+
+    VolumeUi(int streamType, AudioManager audioManager, PowerManager powerManager, Handler handler) {
+        this.streamType = streamType;
+        this.audioManager = audioManager;
+        this.powerManager = powerManager;
+        this.handler = handler;
+    }
+
+    /**
+     * Notes a change to the volume, about to be made.
+     *
+     * @return the flags to make the change with.
+     */
+    int getFlags() {
+
+        final long now = SystemClock.uptimeMillis( );
+        final boolean first = (now - last) > BURST_GAP;
+        last = now;
+        handler.removeCallbacks( end );
+        if (!powerManager.isInteractive( )){
+            return 0;
+        }
+        if (first){
+            return AudioManager.FLAG_SHOW_UI;
+        }
+
+        // Show the outcome once the burst is over
+        handler.postDelayed( end, BURST_GAP );
+        return 0;
+    }
+
+    void cancel() {
+        handler.removeCallbacks( end );
+    }
+}
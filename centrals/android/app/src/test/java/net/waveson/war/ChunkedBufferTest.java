@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the chunking of values (our name, and what's playing) for writing out an MTU at a
+ * time: the header byte which flags the last chunk, the size of each, rewinding for a retry,
+ * and the string buffer's keeping each code point whole.
+ */
+public class ChunkedBufferTest {
+
+    private static final int LAST = 0x80;
+
+    /**
+     * @return copies of every chunk the given buffer hands out, at the given MTU.
+     */
+    private static List<byte[]> getChunks(ChunkedBuffer buffer, int mtu) {
+
+        final List<byte[]> chunks = new ArrayList<>( );
+        while (buffer.hasMore( )){
+            chunks.add( buffer.getNextChunk( mtu ).clone( ) );
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the given chunks, less their headers, end to end.
+     */
+    private static byte[] join(List<byte[]> chunks) {
+
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream( );
+        for (byte[] chunk : chunks){
+            joined.write( chunk, 1, chunk.length - 1 );
+        }
+        return joined.toByteArray( );
+    }
+
+    @Test
+    public void splitsIntoChunksNoLargerThanTheMtu() {
+
+        final byte[] value = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+        final List<byte[]> chunks = getChunks( new ChunkedBuffer( value ), 4 );
+        assertEquals( 4, chunks.size( ) );
+        for (int i = 0; i < chunks.size( ); i++){
+            final byte[] chunk = chunks.get( i );
+            assertTrue( "chunk " + i, chunk.length <= 4 );
+            assertEquals( "chunk " + i, (i == chunks.size( ) - 1) ? LAST : 0, chunk[0] & 0xFF );
+        }
+        assertArrayEquals( value, join( chunks ) );
+    }
+
+    @Test
+    public void flagsAValueWhichFitsAsItsOwnLastChunk() {
+
+        final ChunkedBuffer buffer = new ChunkedBuffer( new byte[]{ 1, 2, 3 } );
+        assertArrayEquals( new byte[]{ (byte) LAST, 1, 2, 3 }, buffer.getNextChunk( 20 ) );
+        assertFalse( buffer.hasMore( ) );
+    }
+
+    @Test
+    public void fillsTheMtuExactly() {
+
+        // A value the size of the MTU leaves no room for the header, so takes two chunks
+        final List<byte[]> chunks = getChunks( new ChunkedBuffer( new byte[]{ 1, 2, 3, 4 } ), 4 );
+        assertEquals( 2, chunks.size( ) );
+        assertArrayEquals( new byte[]{ 0, 1, 2, 3 }, chunks.get( 0 ) );
+        assertArrayEquals( new byte[]{ (byte) LAST, 4 }, chunks.get( 1 ) );
+    }
+
+    @Test
+    public void rewindsToTheLastChunk() {
+
+        final ChunkedBuffer buffer = new ChunkedBuffer( new byte[]{ 0, 1, 2, 3, 4, 5, 6 } );
+        buffer.getNextChunk( 4 );
+        final byte[] chunk = buffer.getNextChunk( 4 ).clone( );
+        buffer.rewind( chunk.length );
+        assertArrayEquals( chunk, buffer.getNextChunk( 4 ) );
+        assertArrayEquals( new byte[]{ (byte) LAST, 6 }, buffer.getNextChunk( 4 ) );
+
+        // ..and to the start
+        buffer.reset( );
+        assertArrayEquals( new byte[]{ 0, 0, 1, 2 }, buffer.getNextChunk( 4 ) );
+    }
+
+    @Test
+    public void keepsCodePointsWhole() {
+
+        final String string = "a\u00e9\u20ac\ud83d\ude00b\u00e9\u20ac\ud83d\ude00";
+        for (int mtu = 5; mtu <= 12; mtu++){
+            final List<byte[]> chunks = getChunks( new ChunkedUtf8StringBuffer( string ), mtu );
+            for (byte[] chunk : chunks){
+                // No chunk starts part way through a code point
+                assertTrue( "mtu " + mtu, chunk.length > 1 );
+                assertNotEquals( "mtu " + mtu, 0x80, chunk[1] & 0xC0 );
+                assertTrue( "mtu " + mtu, chunk.length <= mtu );
+            }
+            assertEquals( string, new String( join( chunks ), StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void backsUpToTheStartOfACodePoint() {
+
+        // The 4-byte code point doesn't fit after the 'a', so goes on in the next chunk
+        final List<byte[]> chunks = getChunks( new ChunkedUtf8StringBuffer( "a\ud83d\ude00" ), 5 );
+        assertEquals( 2, chunks.size( ) );
+        assertArrayEquals( new byte[]{ 0, 'a' }, chunks.get( 0 ) );
+        assertEquals( 5, chunks.get( 1 ).length );
+        assertEquals( LAST, chunks.get( 1 )[0] & 0xFF );
+    }
+
+    @Test
+    public void splitsACodePointWhichCannotFitAChunk() {
+
+        // Rather than hand out an empty chunk, split it
+        final String string = "\ud83d\ude00";
+        final List<byte[]> chunks = getChunks( new ChunkedUtf8StringBuffer( string ), 3 );
+        assertEquals( 2, chunks.size( ) );
+        assertEquals( string, new String( join( chunks ), StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void digestsTheUtf8() {
+
+        final CRC32 crc = new CRC32( );
+        final byte[] bytes = "Pixel \u00e9".getBytes( StandardCharsets.UTF_8 );
+        crc.update( bytes, 0, bytes.length );
+        assertEquals( crc.getValue( ), new ChunkedUtf8StringBuffer( "Pixel \u00e9" ).getDigest( ) );
+        assertEquals(
+            new ChunkedUtf8StringBuffer( "Pixel" ).getDigest( ),
+            new ChunkedUtf8StringBuffer( "Pixel" ).getDigest( )
+        );
+        assertNotEquals(
+            new ChunkedUtf8StringBuffer( "Pixel" ).getDigest( ),
+            new ChunkedUtf8StringBuffer( "Pixel 2" ).getDigest( )
+        );
+    }
+}
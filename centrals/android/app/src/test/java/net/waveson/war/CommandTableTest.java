@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import android.view.KeyEvent;
+
+import android.media.AudioManager;
+
+/**
+ * Checks the command table against the chain of bitmask tests it replaced, for every one of
+ * the 256 notification values.
+ *
+ * The two are expected to differ only where the table was meant to: a combination of transport
+ * keys yields an action for every key in it (rather than just the first), and the values
+ * reserved for macros yield nothing unless the macro has been defined.
+ *
+ * Also checks the parsing of macros: every step, and what's refused.
+ */
+public class CommandTableTest {
+
+    private static final int[][] NO_MACROS = new int[0][];
+
+    private static int action(int op, int operand) {
+        return (op << 16) | (operand & 0x0000FFFF);
+    }
+
+    /**
+     * @return the actions the old chain took for the given value, in the table's terms; the
+     * mute key's toggle and the volume steps' check of the mute state now happen when the
+     * actions are performed, so aren't part of the decoding.
+     */
+    private static int[] decodeAsBefore(int value) {
+
+        if ((value & RemoteControl.STOP) == RemoteControl.STOP){
+            return new int[]{ action( CommandTable.OP_STOP, 0 ) };
+        }
+
+        final int[] actions = new int[2];
+        int count = 0;
+        if ((value & RemoteControl.MUTE) == RemoteControl.MUTE){
+            final boolean apply = ((value & RemoteControl.TWO_STAGE) != RemoteControl.TWO_STAGE)
+                || ((value & RemoteControl.ACTION_DOWN) == 0);
+            if (apply){
+                actions[count++] = ((value & RemoteControl.TOGGLE_RINGER_MODE) == RemoteControl.TOGGLE_RINGER_MODE)
+                    ? action( CommandTable.OP_TOGGLE_RINGER_MODE, 0 )
+                    : action( CommandTable.OP_TOGGLE_MUTE, 0 );
+            }
+        }else{
+            final boolean apply = ((value & RemoteControl.TWO_STAGE) != RemoteControl.TWO_STAGE)
+                || ((value & RemoteControl.ACTION_DOWN) == RemoteControl.ACTION_DOWN);
+            if (apply && (value & (RemoteControl.VOLUME_UP | RemoteControl.VOLUME_DOWN)) != 0){
+                final int direction = ((value & RemoteControl.VOLUME_UP) == RemoteControl.VOLUME_UP)
+                    ? AudioManager.ADJUST_RAISE
+                    : AudioManager.ADJUST_LOWER;
+                actions[count++] = action( CommandTable.OP_ADJUST_VOLUME, direction );
+            }
+        }
+
+        int event = KeyEvent.KEYCODE_UNKNOWN;
+        if ((value & RemoteControl.PLAY_PAUSE) == RemoteControl.PLAY_PAUSE){
+            event = KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE;
+        }else if ((value & RemoteControl.BACK) == RemoteControl.BACK){
+            event = KeyEvent.KEYCODE_MEDIA_PREVIOUS;
+        }else if ((value & RemoteControl.FORWARD) == RemoteControl.FORWARD){
+            event = KeyEvent.KEYCODE_MEDIA_NEXT;
+        }
+        if (event != KeyEvent.KEYCODE_UNKNOWN){
+            final int op;
+            if ((value & RemoteControl.TWO_STAGE) == RemoteControl.TWO_STAGE){
+                op = ((value & RemoteControl.ACTION_DOWN) == RemoteControl.ACTION_DOWN)
+                    ? CommandTable.OP_KEY_DOWN
+                    : CommandTable.OP_KEY_UP;
+            }else{
+                op = CommandTable.OP_KEY_PRESS;
+            }
+            actions[count++] = action( op, event );
+        }
+        return Arrays.copyOf( actions, count );
+    }
+
+    private static int getTransportKeys(int value) {
+
+        int keys = 0;
+        for (int key : CommandTable.TRANSPORT_KEYS){
+            if ((value & key) == key){
+                keys++;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void agreesWithTheOldDecoder() {
+
+        final CommandTable table = new CommandTable( CommandTable.DEFAULT_KEY_CODES, NO_MACROS );
+        for (int value = 0; value < 256; value++){
+            final int[] before = decodeAsBefore( value );
+            final int[] after = table.get( value );
+            if (value != RemoteControl.STOP && CommandTable.isMacro( value )){
+                assertEquals( "macro " + value, 0, after.length );
+                continue;
+            }
+
+            // A combination of keys now yields every key after the first, in order
+            final int keys = getTransportKeys( value );
+            final int extra = (value == RemoteControl.STOP || keys == 0) ? 0 : (keys - 1);
+            assertEquals( "length of " + value, before.length + extra, after.length );
+            assertArrayEquals(
+                "value " + value,
+                before,
+                Arrays.copyOf( after, before.length )
+            );
+        }
+    }
+
+    @Test
+    public void combinationsYieldEveryKey() {
+
+        final CommandTable table = new CommandTable( CommandTable.DEFAULT_KEY_CODES, NO_MACROS );
+        final int value = RemoteControl.BACK | RemoteControl.FORWARD;
+        assertArrayEquals(
+            new int[]{
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PREVIOUS ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_NEXT )
+            },
+            table.get( value )
+        );
+    }
+
+    @Test
+    public void definedMacrosReplaceTheirValues() {
+
+        final int[] macro = CommandTable.parseMacro( "mute, next, volume 30%" );
+        final CommandTable table = new CommandTable( CommandTable.DEFAULT_KEY_CODES, new int[][]{ macro } );
+        assertArrayEquals( macro, table.get( RemoteControl.MACRO | 1 ) );
+        assertEquals( 0, table.get( RemoteControl.MACRO | 2 ).length );
+    }
+
+    @Test
+    public void unboundKeysYieldNothing() {
+
+        final int[] keyCodes = CommandTable.DEFAULT_KEY_CODES.clone( );
+        keyCodes[0] = KeyEvent.KEYCODE_UNKNOWN;
+        final CommandTable table = new CommandTable( keyCodes, NO_MACROS );
+        assertEquals( 0, table.get( RemoteControl.PLAY_PAUSE ).length );
+        assertArrayEquals(
+            new int[]{ action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PREVIOUS ) },
+            table.get( RemoteControl.BACK )
+        );
+    }
+
+    private static void assertRefused(String macro) {
+
+        try {
+            CommandTable.parseMacro( macro );
+            fail( "Parsed '" + macro + "'" );
+        }
+        catch (IllegalArgumentException ex) {
+            // As expected
+        }
+    }
+
+    @Test
+    public void parsesEveryStep() {
+
+        assertArrayEquals(
+            new int[]{
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PLAY ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PAUSE ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_STOP ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_PREVIOUS ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_NEXT ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_REWIND ),
+                action( CommandTable.OP_KEY_PRESS, KeyEvent.KEYCODE_MEDIA_FAST_FORWARD ),
+                action( CommandTable.OP_ADJUST_MUTE, AudioManager.ADJUST_MUTE ),
+                action( CommandTable.OP_ADJUST_MUTE, AudioManager.ADJUST_UNMUTE ),
+                action( CommandTable.OP_TOGGLE_MUTE, 0 ),
+                action( CommandTable.OP_ADJUST_VOLUME, AudioManager.ADJUST_RAISE ),
+                action( CommandTable.OP_ADJUST_VOLUME, AudioManager.ADJUST_LOWER ),
+                action( CommandTable.OP_TOGGLE_RINGER_MODE, 0 ),
+                action( CommandTable.OP_SET_VOLUME, 77 ),
+                action( CommandTable.OP_DELAY, 250 )
+            },
+            CommandTable.parseMacro(
+                "play_pause, play, pause, stop, previous, next, rewind, fast_forward, mute, unmute, "
+                    + "toggle_mute, volume_up, volume_down, ringer, volume 30%, wait 250"
+            )
+        );
+    }
+
+    @Test
+    public void ignoresCaseAndSpacing() {
+
+        assertArrayEquals(
+            CommandTable.parseMacro( "mute, next, volume 30%" ),
+            CommandTable.parseMacro( "  MUTE ,Next,volume   30%  " )
+        );
+    }
+
+    @Test
+    public void scalesVolumesToALevel() {
+
+        assertArrayEquals(
+            new int[]{
+                action( CommandTable.OP_SET_VOLUME, 0 ),
+                action( CommandTable.OP_SET_VOLUME, 128 ),
+                action( CommandTable.OP_SET_VOLUME, 255 )
+            },
+            CommandTable.parseMacro( "volume 0%, volume 50%, volume 100%" )
+        );
+    }
+
+    @Test
+    public void waitsUpToTheLongestDelay() {
+
+        final int[] actions = CommandTable.parseMacro( "wait 0, wait " + CommandTable.MAX_DELAY );
+        assertEquals( CommandTable.OP_DELAY, CommandTable.getOp( actions[1] ) );
+        assertEquals( CommandTable.MAX_DELAY, CommandTable.getOperand( actions[1] ) );
+        assertRefused( "wait " + (CommandTable.MAX_DELAY + 1) );
+    }
+
+    @Test
+    public void refusesWhatItDoesNotRecognise() {
+
+        assertRefused( "" );
+        assertRefused( "dance" );
+        assertRefused( "next,,mute" );
+        assertRefused( "volume 30" );
+        assertRefused( "volume 101%" );
+        assertRefused( "volume -1%" );
+        assertRefused( "volume up" );
+        assertRefused( "wait" );
+        assertRefused( "wait -1" );
+        assertRefused( "wait soon" );
+        assertRefused( "wait 1 2" );
+    }
+
+    @Test
+    public void takesNoMoreMacrosThanThereAreValues() {
+
+        final int[][] macros = new int[RemoteControl.MACRO_COUNT + 1][];
+        for (int i = 0; i < macros.length; i++){
+            macros[i] = CommandTable.parseMacro( "wait " + (i + 1) );
+        }
+        final CommandTable table = new CommandTable( CommandTable.DEFAULT_KEY_CODES, macros );
+        for (int i = 1; i <= RemoteControl.MACRO_COUNT; i++){
+            assertArrayEquals( macros[i - 1], table.get( RemoteControl.MACRO | i ) );
+        }
+
+        // The one left over has no value of its own, so mustn't take any other's
+        final int[] extra = macros[RemoteControl.MACRO_COUNT];
+        for (int value = 0; value < 256; value++){
+            assertFalse( "value " + value, Arrays.equals( extra, table.get( value ) ) );
+        }
+    }
+}
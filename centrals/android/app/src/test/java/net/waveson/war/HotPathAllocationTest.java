@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.os.Handler;
+import android.os.Message;
+
+import android.view.KeyEvent;
+
+import android.media.AudioManager;
+
+/**
+ * Checks that the path each notification takes doesn't allocate once warmed up: from the
+ * subscription manager taking it off the relay, through the dispatcher and the command
+ * processor to the key events and volume changes it results in, and back out as an
+ * acknowledgement.
+ *
+ * The handlers never run anything, so the test drains the dispatcher and hands the subscription
+ * manager its acknowledgements itself, as their threads would; the platform's side of the
+ * commands is a stand-in which just counts them.
+ *
+ * Counts the bytes the test thread allocates over many iterations, less what measuring them
+ * costs; where the JVM can't count them, the test is skipped. The JIT may yet allocate the odd
+ * object of its own (in recompiling a method which was compiled without a branch it has since
+ * come across), so the test allows for less than a byte per notification: anything allocated
+ * per notification, or even per batch of acknowledgements, comes to far more.
+ */
+public class HotPathAllocationTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    // Gives a frame with a sequence number, a timestamp and four events: a key press, two
+    // volume steps (the second of which is debounced) and a volume level
+    private static final byte[] PAYLOAD = {
+        (byte) (NotificationFrame.FLAG_SEQUENCE | NotificationFrame.FLAG_TIMESTAMP),
+        0x00,
+        0x10, 0x20, 0x30, 0x40,
+        (byte) RemoteControl.PLAY_PAUSE, 0,
+        (byte) RemoteControl.VOLUME_UP, 60,
+        (byte) RemoteControl.VOLUME_UP, 12,
+        (byte) NotificationFrame.EVENT_SET_VOLUME, 9, (byte) 0x80
+    };
+
+    private static class CountingPlatform implements CommandProcessor.Platform {
+
+        int count = 0;
+
+        @Override
+        public void dispatchMediaKeyEvent(KeyEvent event) {
+            count++;
+        }
+
+        @Override
+        public boolean dispatchTransportControl(int code) {
+            return false;
+        }
+
+        @Override
+        public void adjustStreamVolume(int direction) {
+            count++;
+        }
+
+        @Override
+        public void setStreamVolume(int index) {
+            count++;
+        }
+
+        @Override
+        public void setRingerMode(int ringerMode) {
+            count++;
+        }
+
+        @Override
+        public void playFeedback(int cue) {
+            count++;
+        }
+
+        @Override
+        public void startReporting(SubscriptionManager subscriptionManager) {
+        }
+
+        @Override
+        public void stopReporting() {
+        }
+
+        @Override
+        public void resetReporting() {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private com.sun.management.ThreadMXBean threads;
+
+    private final byte[] payload = PAYLOAD.clone( );
+    private final CountingPlatform platform = new CountingPlatform( );
+    private final AudioStateMirror audioStateMirror = new AudioStateMirror( AudioManager.STREAM_MUSIC, null );
+    private final CommandProcessor commands = new CommandProcessor(
+        new Handler( ),
+        new Preferences( ),
+        audioStateMirror,
+        platform
+    );
+    private final RemoteControlDispatcher dispatcher = new RemoteControlDispatcher(
+        null,
+        new Handler( ),
+        commands,
+        new Handler( )
+    );
+    private final SubscriptionManager subscriptionManager = new SubscriptionManager(
+        null,
+        dispatcher,
+        "Test",
+        null,
+        new SequenceTracker( ),
+        0L
+    );
+    private final Message ack = new Message( );
+    private long time = 0L;
+
+    @Before
+    public void setUp() {
+
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean( );
+        assumeTrue( bean instanceof com.sun.management.ThreadMXBean );
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue( threads.isThreadAllocatedMemorySupported( ) );
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        subscriptionManager.setCapabilities(
+            new Capabilities( Capabilities.VERSION, Capabilities.SUPPORTED )
+        );
+        subscriptionManager.setInputFilter( new InputFilter( 50L, true ) );
+        subscriptionManager.setLinkMetrics( new LinkStatistics( ) );
+        commands.setSubscriptionManager( subscriptionManager );
+        audioStateMirror.onVolumeSet( 5 );
+        ack.what = SubscriptionManager.ACK_MSG;
+    }
+
+    private long getAllocated() {
+        return threads.getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+    }
+
+    /**
+     * Takes a single notification the whole way through.
+     */
+    private void iterate() {
+
+        subscriptionManager.onRelayed( null, RemoteControl.NOTIFY_UUID, payload, payload.length, time );
+        dispatcher.drain( );
+
+        ack.arg1 = payload[1] & 0xFF;
+        ack.arg2 = 125000;
+        subscriptionManager.handleMessage( ack );
+
+        payload[1]++;
+        time += 200L;
+    }
+
+    @Test
+    public void notificationPathDoesNotAllocate() {
+
+        for (int i = 0; i < WARM_UP; i++){
+            iterate( );
+        }
+
+        // Allow for whatever measuring itself allocates
+        final long start = getAllocated( );
+        final long overhead = getAllocated( ) - start;
+
+        final int before = platform.count;
+        final long allocated = getAllocated( );
+        for (int i = 0; i < ITERATIONS; i++){
+            iterate( );
+        }
+        final long after = getAllocated( ) - allocated - overhead;
+
+        assertTrue(
+            after + " bytes allocated over " + ITERATIONS + " notifications",
+            after < ITERATIONS
+        );
+
+        // Each notification should have come out as two key events and a change of volume,
+        // at the least
+        assertTrue( (platform.count - before) >= (ITERATIONS * 3) );
+    }
+}
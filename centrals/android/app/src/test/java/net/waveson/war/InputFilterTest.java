@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the debouncing of repeated events, and the token bucket of each class of event: its
+ * burst, its rate of refill and what it leaves alone.
+ */
+public class InputFilterTest {
+
+    // Gives a key press, and the press and release of a two-stage key
+    private static final int PRESS = RemoteControl.PLAY_PAUSE;
+    private static final int DOWN = RemoteControl.TWO_STAGE | RemoteControl.ACTION_DOWN | RemoteControl.FORWARD;
+    private static final int UP = RemoteControl.TWO_STAGE | RemoteControl.FORWARD;
+
+    @Test
+    public void classifiesEvents() {
+
+        assertEquals( InputFilter.CLASS_TRANSPORT, InputFilter.getClass( PRESS ) );
+        assertEquals( InputFilter.CLASS_TRANSPORT, InputFilter.getClass( UP ) );
+        assertEquals( InputFilter.CLASS_VOLUME, InputFilter.getClass( RemoteControl.VOLUME_UP ) );
+        assertEquals( InputFilter.CLASS_VOLUME, InputFilter.getClass( RemoteControl.MUTE ) );
+        assertEquals( InputFilter.CLASS_VOLUME, InputFilter.getClass( RemoteControl.SET_VOLUME | 0x80 ) );
+        assertEquals( InputFilter.CLASS_STOP, InputFilter.getClass( RemoteControl.STOP ) );
+    }
+
+    @Test
+    public void debouncesRepeatsWithinTheWindow() {
+
+        final InputFilter filter = new InputFilter( 50L, false );
+        assertTrue( filter.accept( PRESS, 0L ) );
+        assertFalse( filter.accept( PRESS, 49L ) );
+
+        // The window runs from the last event let through, not the last repeat
+        assertTrue( filter.accept( PRESS, 50L ) );
+
+        // Anything else is let through, and restarts the window
+        assertTrue( filter.accept( RemoteControl.VOLUME_UP, 60L ) );
+        assertTrue( filter.accept( PRESS, 61L ) );
+
+        assertEquals( 4, filter.getPassed( ) );
+        assertEquals( 1, filter.getDebounced( ) );
+    }
+
+    @Test
+    public void neverLetsTimeRunBackwards() {
+
+        // An event stamped before the last is taken to have come at the same time
+        final InputFilter filter = new InputFilter( 50L, false );
+        assertTrue( filter.accept( PRESS, 100L ) );
+        assertFalse( filter.accept( PRESS, 20L ) );
+        assertEquals( 1, filter.getDebounced( ) );
+    }
+
+    @Test
+    public void limitsEachClassToItsBurst() {
+
+        final InputFilter filter = new InputFilter( 0L, true );
+        for (int i = 0; i < 8; i++){
+            assertTrue( "press " + i, filter.accept( PRESS, 0L ) );
+        }
+        assertFalse( filter.accept( PRESS, 0L ) );
+        assertEquals( 1, filter.getDropped( InputFilter.CLASS_TRANSPORT ) );
+
+        // The other classes have buckets of their own
+        assertTrue( filter.accept( RemoteControl.VOLUME_UP, 0L ) );
+        assertTrue( filter.accept( RemoteControl.STOP, 0L ) );
+        assertTrue( filter.accept( RemoteControl.STOP, 0L ) );
+        assertFalse( filter.accept( RemoteControl.STOP, 0L ) );
+        assertEquals( 0, filter.getDropped( InputFilter.CLASS_VOLUME ) );
+        assertEquals( 1, filter.getDropped( InputFilter.CLASS_STOP ) );
+        assertEquals( 11, filter.getPassed( ) );
+    }
+
+    @Test
+    public void refillsAtItsRate() {
+
+        final InputFilter filter = new InputFilter( 0L, true );
+        for (int i = 0; i < 8; i++){
+            filter.accept( PRESS, 0L );
+        }
+        assertFalse( filter.accept( PRESS, 99L ) );
+
+        // The transport bucket refills at 10 tokens/s, i.e. one every 100ms
+        assertTrue( filter.accept( PRESS, 100L ) );
+        assertFalse( filter.accept( PRESS, 100L ) );
+
+        // ..and no further than its burst, however long it's left
+        for (int i = 0; i < 8; i++){
+            assertTrue( "press " + i, filter.accept( PRESS, 60000L ) );
+        }
+        assertFalse( filter.accept( PRESS, 60000L ) );
+    }
+
+    @Test
+    public void neverLimitsTheReleaseOfAKey() {
+
+        final InputFilter filter = new InputFilter( 0L, true );
+        for (int i = 0; i < 8; i++){
+            assertTrue( filter.accept( DOWN, 0L ) );
+        }
+        assertFalse( filter.accept( DOWN, 0L ) );
+
+        // A key held down must always be let up
+        assertTrue( filter.accept( UP, 0L ) );
+        assertEquals( 1, filter.getDropped( InputFilter.CLASS_TRANSPORT ) );
+    }
+
+    @Test
+    public void passesEverythingWhenUnlimited() {
+
+        final InputFilter filter = new InputFilter( 0L, false );
+        for (int i = 0; i < 1000; i++){
+            assertTrue( filter.accept( RemoteControl.STOP, 0L ) );
+        }
+        assertEquals( 0, filter.getDropped( InputFilter.CLASS_STOP ) );
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import java.util.concurrent.locks.LockSupport;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput and latency of handing events over by way of the ring buffer (as the
+ * dispatcher does) with handing each over as a message (as it used to), at 1k, 10k and 100k
+ * events per second, and prints the results.
+ *
+ * The JVM has no looper, so a model of one stands in for it: a synchronized queue of pooled
+ * messages, with a consumer which waits when it's empty and is woken by each message sent to
+ * it, as per MessageQueue. The message path is measured as it was, with the looper otherwise
+ * idle, and as it would be on the main looper, with a frame of UI work (4ms in every 16ms)
+ * ahead of it. The ring path posts one message per burst to a looper of its own, as the
+ * dispatcher does to the command thread.
+ *
+ * Each run lasts {@link #DURATION} ms; set the "benchmark.duration" property for longer runs.
+ */
+public class IntRingBufferBenchmarkTest {
+
+    private static final int[] RATES = { 1000, 10000, 100000 };
+    private static final long DURATION = Long.getLong( "benchmark.duration", 250L );
+    private static final int THROUGHPUT_EVENTS = 200000;
+
+    private static final long FRAME_INTERVAL = 16L;
+    private static final long FRAME_WORK = 4L;
+
+    /**
+     * A model of a looper and its message queue.
+     */
+    private static class Looper implements Runnable {
+
+        private static class Message {
+            int arg;
+            Runnable callback;
+            Message next;
+        }
+
+        interface Callback {
+            void handleMessage(int arg);
+        }
+
+        private final Callback callback;
+        private Message head = null, tail = null, pool = null;
+        private boolean blocked = false, quitting = false;
+        private final Thread thread = new Thread( this );
+
+        Looper(Callback callback) {
+            this.callback = callback;
+            thread.start( );
+        }
+
+        private synchronized void enqueue(int arg, Runnable runnable) {
+
+            Message message = pool;
+            if (message == null){
+                message = new Message( );
+            }else{
+                pool = message.next;
+            }
+            message.arg = arg;
+            message.callback = runnable;
+            message.next = null;
+            if (tail == null){
+                head = message;
+            }else{
+                tail.next = message;
+            }
+            tail = message;
+            if (blocked){
+                notify( );
+            }
+        }
+
+        void send(int arg) {
+            enqueue( arg, null );
+        }
+
+        void post(Runnable runnable) {
+            enqueue( 0, runnable );
+        }
+
+        synchronized void quit() {
+            quitting = true;
+            notify( );
+        }
+
+        void join() throws InterruptedException {
+            thread.join( );
+        }
+
+        @Override
+        public void run() {
+
+            for (;;){
+                final Message message;
+                synchronized (this) {
+                    while (head == null){
+                        if (quitting){
+                            return;
+                        }
+                        blocked = true;
+                        try {
+                            wait( );
+                        }
+                        catch (InterruptedException ex) {
+                            return;
+                        }
+                        blocked = false;
+                    }
+                    message = head;
+                    head = message.next;
+                    if (head == null){
+                        tail = null;
+                    }
+                }
+                if (message.callback != null){
+                    message.callback.run( );
+                }else{
+                    callback.handleMessage( message.arg );
+                }
+                synchronized (this) {
+                    message.callback = null;
+                    message.next = pool;
+                    pool = message;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives a way of handing events over, and notes when each arrives.
+     */
+    private static abstract class Path implements Looper.Callback {
+
+        final long[] sent;
+        final long[] latencies;
+        volatile int received = 0;
+        final Looper looper = new Looper( this );
+
+        Path(int count) {
+            sent = new long[count];
+            latencies = new long[count];
+        }
+
+        /**
+         * Hands over the given event; only called by the producer.
+         */
+        abstract void offer(int event);
+
+        @Override
+        public void handleMessage(int event) {
+            latencies[event] = System.nanoTime( ) - sent[event];
+            received++;
+        }
+    }
+
+    private static class MessagePath extends Path {
+
+        MessagePath(int count) {
+            super( count );
+        }
+
+        @Override
+        void offer(int event) {
+            looper.send( event );
+        }
+    }
+
+    private static class RingPath extends Path {
+
+        private final IntRingBuffer events = new IntRingBuffer( 1024 );
+        private final AtomicBoolean draining = new AtomicBoolean( false );
+        private final int[] batch = new int[64];
+        private final Runnable drain = new Runnable( ) {
+            @Override
+            public void run() {
+                draining.set( false );
+                int count;
+                while ((count = events.drainTo( batch )) > 0){
+                    for (int i = 0; i < count; i++){
+                        handleMessage( batch[i] );
+                    }
+                }
+            }
+        };
+
+        RingPath(int count) {
+            super( count );
+        }
+
+        @Override
+        void offer(int event) {
+
+            // Unlike the dispatcher, wait for room rather than drop, so everything is measured
+            while (!events.offer( event )){
+                Thread.yield( );
+            }
+            if (!draining.getAndSet( true )){
+                looper.post( drain );
+            }
+        }
+    }
+
+    /**
+     * Keeps the given looper busy with a frame of work every so often, until stopped.
+     */
+    private static Thread startFrames(final Looper looper, final AtomicBoolean running) {
+
+        final Runnable frame = new Runnable( ) {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( FRAME_WORK );
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread( ).interrupt( );
+                }
+            }
+        };
+        final Thread thread = new Thread( new Runnable( ) {
+            @Override
+            public void run() {
+                while (running.get( )){
+                    looper.post( frame );
+                    try {
+                        Thread.sleep( FRAME_INTERVAL );
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        } );
+        thread.start( );
+        return thread;
+    }
+
+    /**
+     * Offers the given number of events at the given rate (or as fast as possible, for 0),
+     * and waits for them all to arrive.
+     *
+     * @return the time (in ns) from the first being offered to the last arriving.
+     */
+    private static long run(Path path, int count, int rate, boolean frames) throws InterruptedException {
+
+        final AtomicBoolean running = new AtomicBoolean( true );
+        final Thread ui = frames ? startFrames( path.looper, running ) : null;
+
+        final long start = System.nanoTime( );
+        for (int i = 0; i < count; i++){
+            if (rate > 0){
+                // Offer whatever is due, then wait for the next; events go out in bursts
+                // wherever the wait can't be that short, as they come off the air
+                final long due = start + (i * 1000000000L) / rate;
+                final long wait = due - System.nanoTime( );
+                if (wait > 0L){
+                    LockSupport.parkNanos( wait );
+                }
+            }
+            path.sent[i] = System.nanoTime( );
+            path.offer( i );
+        }
+        while (path.received < count){
+            Thread.yield( );
+        }
+        final long elapsed = System.nanoTime( ) - start;
+
+        running.set( false );
+        if (ui != null){
+            ui.join( );
+        }
+        path.looper.quit( );
+        path.looper.join( );
+        return elapsed;
+    }
+
+    private static String summarise(String name, long[] latencies) {
+
+        final long[] sorted = latencies.clone( );
+        Arrays.sort( sorted );
+        long total = 0L;
+        for (long latency : sorted){
+            total += latency;
+        }
+        return String.format(
+            Locale.ROOT,
+            "  %-20s mean %8.1fus  p50 %8.1fus  p99 %8.1fus  max %8.1fus",
+            name,
+            (total / (double) sorted.length) / 1000.0,
+            sorted[sorted.length / 2] / 1000.0,
+            sorted[(int) (sorted.length * 0.99)] / 1000.0,
+            sorted[sorted.length - 1] / 1000.0
+        );
+    }
+
+    /**
+     * Runs both paths flat out for a while, so that neither is measured before it's compiled.
+     */
+    private static void warmUp() throws InterruptedException {
+
+        run( new MessagePath( THROUGHPUT_EVENTS ), THROUGHPUT_EVENTS, 0, false );
+        run( new RingPath( THROUGHPUT_EVENTS ), THROUGHPUT_EVENTS, 0, false );
+    }
+
+    @Test(timeout = 120000L)
+    public void comparesLatencyAtEachRate() throws InterruptedException {
+
+        warmUp( );
+        for (int rate : RATES){
+            final int count = (int) Math.max( (rate * DURATION) / 1000L, 100L );
+            final Path messages = new MessagePath( count );
+            final Path messagesWithUi = new MessagePath( count );
+            final Path ring = new RingPath( count );
+            run( messages, count, rate, false );
+            run( messagesWithUi, count, rate, true );
+            run( ring, count, rate, false );
+
+            System.out.println( "Latency at " + rate + " events/s (" + count + " events):" );
+            System.out.println( summarise( "message per event", messages.latencies ) );
+            System.out.println( summarise( "  behind UI frames", messagesWithUi.latencies ) );
+            System.out.println( summarise( "ring buffer", ring.latencies ) );
+            assertEquals( count, messages.received );
+            assertEquals( count, messagesWithUi.received );
+            assertEquals( count, ring.received );
+        }
+    }
+
+    @Test(timeout = 120000L)
+    public void comparesThroughput() throws InterruptedException {
+
+        warmUp( );
+        final Path messages = new MessagePath( THROUGHPUT_EVENTS );
+        final Path ring = new RingPath( THROUGHPUT_EVENTS );
+        final long viaMessages = run( messages, THROUGHPUT_EVENTS, 0, false );
+        final long viaRing = run( ring, THROUGHPUT_EVENTS, 0, false );
+
+        System.out.println( "Throughput (" + THROUGHPUT_EVENTS + " events, unpaced):" );
+        System.out.println( String.format(
+            Locale.ROOT,
+            "  %-20s %,12.0f events/s%n  %-20s %,12.0f events/s",
+            "message per event", THROUGHPUT_EVENTS / (viaMessages / 1e9),
+            "ring buffer", THROUGHPUT_EVENTS / (viaRing / 1e9)
+        ) );
+        assertEquals( THROUGHPUT_EVENTS, messages.received );
+        assertEquals( THROUGHPUT_EVENTS, ring.received );
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ring buffer on its own, and then under a producer and a consumer on threads of
+ * their own; the buffers are kept small, so that they wrap around many times over.
+ */
+public class IntRingBufferTest {
+
+    private static final int COUNT = 1000000;
+
+    @Test
+    public void roundsUpToAPowerOfTwo() {
+
+        final IntRingBuffer buffer = new IntRingBuffer( 5 );
+        for (int i = 0; i < 8; i++){
+            assertTrue( buffer.offer( i ) );
+        }
+        assertFalse( buffer.offer( 8 ) );
+        assertEquals( 1, buffer.getOverflows( ) );
+    }
+
+    @Test
+    public void dropsAndCountsOnOverflow() {
+
+        final IntRingBuffer buffer = new IntRingBuffer( 4 );
+        final int[] batch = new int[4];
+        for (int round = 0; round < 10; round++){
+            for (int i = 0; i < 4; i++){
+                assertTrue( buffer.offer( round * 4 + i ) );
+            }
+            assertFalse( buffer.offer( -1 ) );
+            assertEquals( round + 1, buffer.getOverflows( ) );
+
+            assertEquals( 4, buffer.drainTo( batch ) );
+            for (int i = 0; i < 4; i++){
+                assertEquals( round * 4 + i, batch[i] );
+            }
+            assertTrue( buffer.isEmpty( ) );
+        }
+    }
+
+    @Test
+    public void drainsNoMoreThanTheBatch() {
+
+        final IntRingBuffer buffer = new IntRingBuffer( 8 );
+        for (int i = 0; i < 6; i++){
+            buffer.offer( i );
+        }
+        final int[] batch = new int[4];
+        assertEquals( 4, buffer.drainTo( batch ) );
+        assertEquals( 3, batch[3] );
+        assertEquals( 2, buffer.drainTo( batch ) );
+        assertEquals( 5, batch[1] );
+        assertEquals( 0, buffer.drainTo( batch ) );
+    }
+
+    /**
+     * Has the producer retry whatever doesn't fit, so that every value must come through,
+     * in order; each refusal must be counted as an overflow.
+     */
+    @Test(timeout = 60000L)
+    public void deliversEverythingInOrderUnderContention() throws InterruptedException {
+
+        final IntRingBuffer buffer = new IntRingBuffer( 16 );
+        final int[] refused = new int[1];
+        final Thread producer = new Thread( new Runnable( ) {
+            @Override
+            public void run() {
+                for (int i = 0; i < COUNT; i++){
+                    while (!buffer.offer( i )){
+                        refused[0]++;
+                        Thread.yield( );
+                    }
+                }
+            }
+        } );
+        final AtomicReference<String> error = new AtomicReference<>( );
+        final Thread consumer = new Thread( new Runnable( ) {
+            @Override
+            public void run() {
+                final int[] batch = new int[5];
+                int expected = 0;
+                while (expected < COUNT){
+                    final int count = buffer.drainTo( batch );
+                    if (count == 0){
+                        Thread.yield( );
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++){
+                        if (batch[i] != expected){
+                            error.set( "Expected " + expected + " but got " + batch[i] );
+                            return;
+                        }
+                        expected++;
+                    }
+                }
+            }
+        } );
+        consumer.start( );
+        producer.start( );
+        producer.join( );
+        consumer.join( );
+
+        assertNull( error.get( ), error.get( ) );
+        assertTrue( buffer.isEmpty( ) );
+        assertEquals( refused[0], buffer.getOverflows( ) );
+    }
+
+    /**
+     * Has the producer drop whatever doesn't fit, as the dispatcher does; what comes through
+     * must still be in order, and along with what was dropped, account for everything.
+     */
+    @Test(timeout = 60000L)
+    public void accountsForEverythingOnOverflow() throws InterruptedException {
+
+        final IntRingBuffer buffer = new IntRingBuffer( 8 );
+        final Thread producer = new Thread( new Runnable( ) {
+            @Override
+            public void run() {
+                for (int i = 0; i < COUNT; i++){
+                    buffer.offer( i );
+                    if ((i & 0xFF) == 0){
+                        Thread.yield( );
+                    }
+                }
+            }
+        } );
+        final AtomicReference<String> error = new AtomicReference<>( );
+        final long[] received = new long[1];
+        final Thread consumer = new Thread( new Runnable( ) {
+            @Override
+            public void run() {
+                final int[] batch = new int[3];
+                int last = -1;
+                while (!Thread.currentThread( ).isInterrupted( ) || !buffer.isEmpty( )){
+                    final int count = buffer.drainTo( batch );
+                    if (count == 0){
+                        Thread.yield( );
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++){
+                        if (batch[i] <= last){
+                            error.set( "Got " + batch[i] + " after " + last );
+                            return;
+                        }
+                        last = batch[i];
+                    }
+                    received[0] += count;
+                }
+            }
+        } );
+        consumer.start( );
+        producer.start( );
+        producer.join( );
+        consumer.interrupt( );
+        consumer.join( );
+
+        assertNull( error.get( ), error.get( ) );
+        assertEquals( COUNT, received[0] + buffer.getOverflows( ) );
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Handler;
+
+/**
+ * Checks that subscription changes and errors reach the command processor in the order they
+ * were offered, relative to the events around them, even when events overflow.
+ *
+ * The handlers never run anything, so the test drains the dispatcher itself, as its handler
+ * would.
+ */
+public class RemoteControlDispatcherTest {
+
+    private static class RecordingCommandProcessor extends CommandProcessor {
+
+        final List<String> calls = new ArrayList<>( );
+
+        RecordingCommandProcessor() {
+            super( null, null, null, null );
+        }
+
+        @Override
+        void onSubscriptionChanged(boolean subscribed) {
+            calls.add( subscribed ? "subscribed" : "unsubscribed" );
+        }
+
+        @Override
+        void onNotification(int value) {
+            calls.add( "notification " + value );
+        }
+
+        @Override
+        void onFrame(int sequence) {
+            calls.add( "frame " + sequence );
+        }
+
+        @Override
+        void onResync(int lost) {
+            calls.add( "resync " + lost );
+        }
+    }
+
+    private final RecordingCommandProcessor commands = new RecordingCommandProcessor( );
+    private final RemoteControlDispatcher dispatcher = new RemoteControlDispatcher(
+        null,
+        new Handler( ),
+        commands,
+        new Handler( )
+    );
+
+    @Test
+    public void handsOverControlsInOrder() {
+
+        dispatcher.onSubscriptionChanged( true );
+        dispatcher.onNotification( 1 );
+        dispatcher.onFrame( 7 );
+        dispatcher.onConnectionError( 0 );
+        dispatcher.onNotification( 2 );
+        dispatcher.onSubscriptionChanged( false );
+        dispatcher.onNotification( 3 );
+        dispatcher.drain( );
+
+        assertEquals(
+            Arrays.asList(
+                "subscribed",
+                "notification 1",
+                "frame 7",
+                "notification 2",
+                "unsubscribed",
+                "notification 3"
+            ),
+            commands.calls
+        );
+    }
+
+    @Test
+    public void neverDropsControlsOnOverflow() {
+
+        final int count = 1100;
+        for (int i = 0; i < count; i++){
+            dispatcher.onNotification( i );
+        }
+        dispatcher.onSubscriptionChanged( false );
+        dispatcher.drain( );
+
+        // Whatever fitted comes first, then the change, then the resync for the rest
+        final List<String> calls = commands.calls;
+        final int fitted = calls.size( ) - 2;
+        assertEquals( "notification " + (fitted - 1), calls.get( fitted - 1 ) );
+        assertEquals( "unsubscribed", calls.get( fitted ) );
+        assertEquals( "resync " + (count - fitted), calls.get( fitted + 1 ) );
+    }
+}
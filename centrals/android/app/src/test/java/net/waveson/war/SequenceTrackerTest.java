@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how frames are told apart within a link, and across a reconnection.
+ */
+public class SequenceTrackerTest {
+
+    private static SequenceTracker track(int from, int to) {
+
+        final SequenceTracker tracker = new SequenceTracker( );
+        for (int sequence = from; sequence <= to; sequence++){
+            assertEquals( 0, tracker.track( sequence & 0xFF ) );
+        }
+        return tracker;
+    }
+
+    @Test
+    public void countsTheFramesSkipped() {
+
+        final SequenceTracker tracker = track( 250, 260 );
+        assertEquals( 2, tracker.track( 7 ) );
+        assertFalse( tracker.hasRestarted( ) );
+    }
+
+    @Test
+    public void dropsReplaysWithinALink() {
+
+        final SequenceTracker tracker = track( 0, 40 );
+        assertEquals( -1, tracker.track( 40 ) );
+        assertEquals( -1, tracker.track( 30 ) );
+        assertEquals( 0, tracker.track( 41 ) );
+    }
+
+    @Test
+    public void countsALongGapWithinALinkAsLoss() {
+
+        final SequenceTracker tracker = track( 0, 10 );
+        assertEquals( 199, tracker.track( 210 ) );
+        assertFalse( tracker.hasRestarted( ) );
+        assertEquals( 0, tracker.track( 211 ) );
+    }
+
+    @Test
+    public void dropsReplaysAfterReconnecting() {
+
+        final SequenceTracker tracker = track( 100, 120 );
+        tracker.restart( );
+
+        // The peripheral re-sends what it last sent, and then carries on
+        assertEquals( -1, tracker.track( 120 ) );
+        assertEquals( -1, tracker.track( 118 ) );
+        assertEquals( -1, tracker.track( 120 ) );
+        assertFalse( tracker.hasRestarted( ) );
+        assertEquals( 0, tracker.track( 121 ) );
+        assertFalse( tracker.hasRestarted( ) );
+        assertEquals( -1, tracker.track( 121 ) );
+        assertEquals( 0, tracker.track( 122 ) );
+    }
+
+    @Test
+    public void carriesOnAfterReconnecting() {
+
+        final SequenceTracker tracker = track( 250, 260 );
+        tracker.restart( );
+        assertEquals( 0, tracker.track( 30 ) );
+        assertFalse( tracker.hasRestarted( ) );
+        assertEquals( 1, tracker.track( 32 ) );
+    }
+
+    @Test
+    public void recognisesAPeripheralStartingOver() {
+
+        final SequenceTracker tracker = track( 0, 200 );
+        tracker.restart( );
+        assertEquals( 0, tracker.track( 0 ) );
+        assertTrue( tracker.hasRestarted( ) );
+        assertEquals( 0, tracker.track( 1 ) );
+        assertFalse( tracker.hasRestarted( ) );
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018-19 Stephen Higgins.
+ * All rights reserved.
+ */
+package net.waveson.war;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the notifications from a peripheral are only decoded as far as it agreed to in
+ * negotiating its capabilities.
+ */
+public class SubscriptionManagerTest {
+
+    // Gives a frame with a sequence number and a single key press
+    private static final byte[] FRAME = {
+        (byte) NotificationFrame.FLAG_SEQUENCE,
+        0x07,
+        (byte) RemoteControl.PLAY_PAUSE, 0
+    };
+
+    private static class RecordingCallback implements SubscriptionManager.Callback {
+
+        final List<Integer> notifications = new ArrayList<>( );
+        final List<Integer> frames = new ArrayList<>( );
+        int resyncs = 0;
+
+        @Override
+        public void onConnectionError(int string, Object... etc) {
+        }
+
+        @Override
+        public void onError(int string, Object... args) {
+        }
+
+        @Override
+        public void onSubscriptionChanged(boolean subscribed) {
+        }
+
+        @Override
+        public void onNotification(int value) {
+            notifications.add( value );
+        }
+
+        @Override
+        public void onFrame(int sequence) {
+            frames.add( sequence );
+        }
+
+        @Override
+        public void onResync(int lost) {
+            resyncs++;
+        }
+
+        @Override
+        public void onNowPlayingAbandoned() {
+        }
+    }
+
+    private final RecordingCallback callback = new RecordingCallback( );
+    private final SubscriptionManager subscriptionManager = new SubscriptionManager(
+        null,
+        callback,
+        "Test",
+        null,
+        new SequenceTracker( ),
+        0L
+    );
+
+    private void relay(byte[] payload) {
+        subscriptionManager.onRelayed( null, RemoteControl.NOTIFY_UUID, payload, payload.length, 0L );
+    }
+
+    @Test
+    public void takesOnlySingleEventsFromALegacyPeripheral() {
+
+        relay( FRAME );
+        relay( new byte[]{ (byte) RemoteControl.VOLUME_UP } );
+        assertEquals( 1, callback.notifications.size( ) );
+        assertEquals( RemoteControl.VOLUME_UP, (int) callback.notifications.get( 0 ) );
+    }
+
+    @Test
+    public void ignoresSequenceNumbersUnlessAgreed() {
+
+        subscriptionManager.setCapabilities(
+            new Capabilities( Capabilities.VERSION, Capabilities.FEATURE_FRAMES | Capabilities.FEATURE_ACK )
+        );
+
+        // The same frame twice is not a duplicate, nor is either acknowledged
+        relay( FRAME );
+        relay( FRAME );
+        assertEquals( 2, callback.notifications.size( ) );
+        assertEquals( 0, callback.frames.size( ) );
+    }
+
+    @Test
+    public void tracksSequenceNumbersOnceAgreed() {
+
+        subscriptionManager.setCapabilities(
+            new Capabilities( Capabilities.VERSION, Capabilities.SUPPORTED )
+        );
+        relay( FRAME );
+        relay( FRAME );
+        assertEquals( 1, callback.notifications.size( ) );
+        assertEquals( 1, callback.frames.size( ) );
+        assertEquals( 7, (int) callback.frames.get( 0 ) );
+        assertEquals( 0, callback.resyncs );
+    }
+}